@@ -130,6 +130,21 @@ public interface CollaborativeList extends CollaborativeObject {
    */
   IndexReference registerReference(int index, boolean canBeDeleted);
 
+  /**
+   * Moves a range of items to another position in the list. This is not a native move: it is sent
+   * as a single mutation made of a removal followed by an insertion of the same values, and
+   * listeners get a values removed and a values added event. As with any removal and insertion, if
+   * another collaborator concurrently removes or moves some of the items, the moved copies are
+   * still inserted, so those items may end up in the list twice.
+   *
+   * @param fromIndex The index of the first item to move.
+   * @param toIndex The index, counted before the move, in front of which the items are placed. It
+   *          must not be inside the moved range.
+   * @param length The number of items to move.
+   * @exception ArrayIndexOutOfBoundsException
+   */
+  void move(int fromIndex, int toIndex, int length);
+
   /**
    * Removes the item at the given index from the list.
    *
@@ -91,6 +91,15 @@ public interface CollaborativeMap extends CollaborativeObject {
    */
   <T> T remove(String key);
 
+  /**
+   * Removes the entries for the given keys (if such entries exist). All the removals are sent as a
+   * single mutation.
+   *
+   * @param keys The keys to unmap.
+   * @exception IllegalArgumentException
+   */
+  void removeAll(JsonArray keys);
+
   /**
    * Put the value into the map with the given key, overwriting an existing value for that key.
    *
@@ -101,6 +110,15 @@ public interface CollaborativeMap extends CollaborativeObject {
    */
   <T> T set(String key, Object value);
 
+  /**
+   * Puts all the entries of the given object into the map, overwriting existing values for the
+   * same keys. A null value removes the entry. All the changes are sent as a single mutation.
+   *
+   * @param values The entries to put.
+   * @exception IllegalArgumentException
+   */
+  void setAll(JsonObject values);
+
   /**
    * Returns an array containing a copy of the values in this map. Modifications to the returned
    * array do not modify this collaborative map.
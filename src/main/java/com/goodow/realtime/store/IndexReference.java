@@ -42,6 +42,12 @@ public interface IndexReference extends CollaborativeObject {
    */
   boolean canBeDeleted();
 
+  /**
+   * Detaches this reference: its index becomes -1, it stops following edits to the referenced
+   * object and it is dropped from the document snapshot unless another object refers to it.
+   */
+  void dispose();
+
   /**
    * @return The index of the current location the reference points to. Write to this property to
    *         change the referenced index.
@@ -28,6 +28,19 @@ import com.goodow.realtime.json.JsonObject;
 public interface Model {
   Registration onUndoRedoStateChanged(Handler<UndoRedoStateChangedEvent> handler);
 
+  /**
+   * Starts a compound operation. If a name is given, that name will be recorded in the mutation for
+   * use in revision history, undo menus, etc. When beginCompoundOperation() is called, all
+   * subsequent edits to the data model will be batched together in the undo stack and revision
+   * history until endCompoundOperation() is called. Compound operations may be nested inside other
+   * compound operations. Note that the compound operation MUST start and end in the same
+   * synchronous execution block. If this invariant is violated, the data model will become invalid
+   * and all future changes will fail.
+   *
+   * @param opt_name An optional name for this compound operation.
+   */
+  void beginCompoundOperation(String opt_name);
+
   /**
    * Creates a collaborative list.
    *
@@ -52,6 +65,13 @@ public interface Model {
    */
   CollaborativeString createString(String opt_initialValue);
 
+  /**
+   * Ends a compound operation. All the edits made since the matching beginCompoundOperation() are
+   * sent as a single mutation. This method will throw an exception if no compound operation is in
+   * progress.
+   */
+  void endCompoundOperation();
+
   /**
    * @return The root of the object model.
    */
@@ -76,4 +96,9 @@ public interface Model {
    * @return True if the model can currently undo.
    */
   boolean canUndo();
+
+  /**
+   * @return An estimate of the number of bytes used by data stored in the model.
+   */
+  double bytesUsed();
 }
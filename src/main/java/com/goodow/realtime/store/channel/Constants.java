@@ -36,7 +36,22 @@ public interface Constants {
     String OP = "op";
     String OPS = "ops";
     String SESSION_ID = "sid";
+    /**
+     * The number of ops of the same session sent before an op and not acked yet when it was sent.
+     * The server rejects the op unless these ops were applied right before its version.
+     */
+    String CHAINED = "chained";
     String VERSION = "v";
+    /**
+     * The version of a copy of the document already held by the client: a get may then reply with
+     * the ops applied since, instead of the full snapshot.
+     */
+    String KNOWN_VERSION = "knownVersion";
+    /**
+     * Selects the representation of the document a get replies with: "snapshot", the components
+     * the client rebuilds the document from, or "root", its plain JSON rendering. Both if absent.
+     */
+    String FIELDS = "fields";
     String SNAPSHOT = "snapshot";
     String COLLABORATORS = "collaborators";
 
@@ -20,6 +20,7 @@ import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Platform;
 import com.goodow.realtime.core.Registration;
 import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
 import com.goodow.realtime.operation.Operation;
 import com.goodow.realtime.operation.Transformer;
@@ -103,11 +104,20 @@ public class OperationChannel<O extends Operation<?>> {
     }
   }
 
+  /* Default minimum number of milliseconds between two sends, see setSendWindow: none. */
+  public static final int DEFAULT_SEND_WINDOW_MS = 0;
+  /* Default number of queued ops sent without waiting for the send window to elapse. */
+  public static final int DEFAULT_MAX_OPS_PER_SEND = 100;
+  /* Default maximum number of missed ops fetched to catch up, see setMaxCatchUpOps. */
+  public static final int DEFAULT_MAX_CATCH_UP_OPS = 1000;
+
   private boolean isMaybeSendTaskScheduled;
+  private int sendTimerId = -1;
   private final Handler<Void> maybeSendTask = new Handler<Void>() {
     @Override
     public void handle(Void ignore) {
       isMaybeSendTaskScheduled = false;
+      sendTimerId = -1;
       maybeSend();
     }
   };
@@ -122,6 +132,28 @@ public class OperationChannel<O extends Operation<?>> {
   private final Bus bus;
   private Registration handlerRegistration;
   private final Transformer<O> transformer;
+  /* Ops received past a gap in the server history, while fetching the missing ones, or null. */
+  private JsonArray pendingOps; // ArrayList<JsonObject>
+  private int maxCatchUpOps = DEFAULT_MAX_CATCH_UP_OPS;
+
+  // Send coalescing
+  private int sendWindowMs = DEFAULT_SEND_WINDOW_MS;
+  private int maxOpsPerSend = DEFAULT_MAX_OPS_PER_SEND;
+  private double lastSendTime;
+  private int queuedOps;
+  /* The maximum number of sends waiting for their acks, see setPipelineDepth. */
+  private int pipelineDepth = 1;
+  /* The number of times a server op moved chained ops back to the queued ops. */
+  private int pipelineBreaks;
+  /* Set once the server rejected a chained op: nothing is sent until the unacked ops are acked. */
+  private boolean isPipelineBroken;
+  // Metrics
+  private int sendCount;
+  private int sentOpCount;
+  /* One in this many sends is traced at INFO level, 0 if tracing is disabled. */
+  private int traceSampling;
+  /* The time the last traced send was made, or -1 if it was acked already. */
+  private double tracedSendTime = -1;
 
   public OperationChannel(String id, Transformer<O> transformer, Bus bus, Listener<O> listener) {
     this.id = id;
@@ -131,7 +163,7 @@ public class OperationChannel<O extends Operation<?>> {
     this.listener = listener;
   }
 
-  public void connect(double version) {
+  public void connect(long version) {
     assert !isConnected() : "Already connected";
     assert version >= 0 : "Invalid version, " + version;
     String addr = Constants.Topic.STORE + "/" + id + Constants.Topic.WATCH;
@@ -144,14 +176,7 @@ public class OperationChannel<O extends Operation<?>> {
         if (!isConnected()) {
           return;
         }
-        JsonObject body = message.body();
-        O op = transformer.createOperation(body);
-        double appliedAt = body.getNumber(Key.VERSION);
-        if (bus.getSessionId().equals(body.getString(Key.SESSION_ID))) {
-          onAckOwnOperation(appliedAt, op);
-        } else {
-          onIncomingOperation(appliedAt, op);
-        }
+        onServerOp(message.body());
       }
     });
 
@@ -161,8 +186,14 @@ public class OperationChannel<O extends Operation<?>> {
 
   public void disconnect() {
     if(isConnected()) {
+      if (sendTimerId != -1) {
+        Platform.scheduler().cancelTimer(sendTimerId);
+        sendTimerId = -1;
+        isMaybeSendTaskScheduled = false;
+      }
       handlerRegistration.unregister();
       handlerRegistration = null;
+      pendingOps = null;
       setState(State.UNINITIALISED);
     }
   }
@@ -180,27 +211,130 @@ public class OperationChannel<O extends Operation<?>> {
   public void send(O operation) {
     checkConnected();
     queue.clientOp(operation);
+    queuedOps++;
     // Defer the send to allow multiple ops to batch up, and to avoid waiting for the browser's
     // network stack in case we are in a time critical piece of code. Note, we could even go further
     // and avoid doing the transform inside the queue.
-    if (!isMaybeSendTaskScheduled && queue.unackedClientOp() == null) {
-      assert state == State.ACKED;
-      isMaybeSendTaskScheduled = true;
-      Platform.scheduler().scheduleDeferred(maybeSendTask);
+    if (queue.unackedClientOpCount() < pipelineDepth) {
+      assert state == State.ACKED || pipelineDepth > 1;
+      scheduleSend();
     }
   }
 
-  public double version() {
+  /**
+   * @return the number of times queued ops were sent to the server.
+   */
+  public int sendCount() {
+    return sendCount;
+  }
+
+  /**
+   * @return the number of ops passed to {@link #send} and sent to the server so far. Divided by
+   *         {@link #sendCount()}, this gives the average number of ops composed into each send.
+   */
+  public int sentOpCount() {
+    return sentOpCount;
+  }
+
+  /**
+   * Sets the maximum number of ops missed by the channel, e.g. while reconnecting, which are fetched
+   * from the server to catch up. Beyond this gap, fetching the ops costs more than reloading the
+   * document: the channel disconnects and reports an error instead, so that the document is loaded
+   * again from a snapshot.
+   */
+  public void setMaxCatchUpOps(int maxOps) {
+    assert maxOps >= 0;
+    maxCatchUpOps = maxOps;
+  }
+
+  /**
+   * Enables a sampled trace of the ops sent: one in {@code oneIn} sends is logged at INFO level,
+   * with its op and the time it took to be acked. Other sends only cost a counter check, so the
+   * trace may be left on in production. 0 disables it.
+   */
+  public void setTraceSampling(int oneIn) {
+    assert oneIn >= 0;
+    traceSampling = oneIn;
+  }
+
+  /**
+   * Enables the pipelined mode, where up to {@code depth} sends may wait for their acks at the same
+   * time, instead of one. Each send is submitted at the version following the previous one, so that
+   * a client on a high latency link isn't limited to one send per round-trip. If an op from another
+   * session reaches the server first, the server rejects the sends following the first unacked one
+   * and they are sent again, transformed. If the server rejects a send for another reason, e.g. the
+   * send it is chained to didn't reach the server in time, it is sent again along with the sends
+   * following it, once the sends before it are acked.
+   */
+  public void setPipelineDepth(int depth) {
+    assert depth > 0;
+    pipelineDepth = depth;
+  }
+
+  /**
+   * Configures how local ops are coalesced before being sent. Ops are always held while a previous
+   * send is waiting for its ack; once acked, the queued ops are composed and sent no sooner than
+   * {@code windowMs} milliseconds after the previous send, unless {@code maxOps} ops are queued.
+   * A window of 0, the default, sends as soon as possible: coalescing is opt-in, since it delays
+   * each save by up to the window.
+   */
+  public void setSendWindow(int windowMs, int maxOps) {
+    assert windowMs >= 0 && maxOps > 0;
+    sendWindowMs = windowMs;
+    maxOpsPerSend = maxOps;
+  }
+
+  public long version() {
     checkConnected();
     return queue.version();
   }
 
   private void acked() {
-    setState(State.ACKED);
-    if (!isMaybeSendTaskScheduled && queue.hasQueuedClientOps()) {
-      isMaybeSendTaskScheduled = true;
-      Platform.scheduler().scheduleDeferred(maybeSendTask);
+    if (queue.unackedClientOp() == null) {
+      setState(State.ACKED);
+    }
+    if (queue.hasQueuedClientOps() && queue.unackedClientOpCount() < pipelineDepth) {
+      scheduleSend();
+    }
+  }
+
+  /**
+   * Fetches the ops applied in [from, to) from the server, then handles them followed by the
+   * pending ops.
+   */
+  private void catchUp(final long from, long to) {
+    if (to - from > maxCatchUpOps) {
+      failCatchUp("Missed " + (to - from) + " ops @" + from + ", the document must be reloaded");
+      return;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Catching up from @" + from + " to @" + to);
     }
+    JsonObject request = Json.createObject().set(Key.ID, id);
+    Versions.set(Versions.set(request, "from", from), "to", to);
+    bus.send(Constants.Topic.STORE + Constants.Topic.OPS, request,
+        new Handler<Message<JsonArray>>() {
+          @Override
+          public void handle(Message<JsonArray> message) {
+            if (!isConnected() || pendingOps == null) {
+              return;
+            }
+            JsonArray ops = message.body();
+            if (ops == null || ops.length() == 0) {
+              failCatchUp("Failed to fetch the ops missed @" + from);
+              return;
+            }
+            JsonArray pending = pendingOps;
+            pendingOps = null;
+            for (int i = 0, len = ops.length(); i < len; i++) {
+              onServerOp(ops.<JsonObject> get(i));
+            }
+            // May start catching up again if the fetched ops didn't fill the gap
+            for (int i = 0, len = pending.length(); i < len && isConnected(); i++) {
+              onServerOp(pending.<JsonObject> get(i));
+            }
+          }
+        });
   }
 
   private void checkConnected() {
@@ -216,13 +350,22 @@ public class OperationChannel<O extends Operation<?>> {
         assert queue.unackedClientOp() == null;
         break;
       case WAITING_ACK:
-        assert !isMaybeSendTaskScheduled;
+        assert !isMaybeSendTaskScheduled || pipelineDepth > 1;
         break;
       default:
         throw new AssertionError("State " + state + " not implemented");
     }
   }
 
+  /**
+   * Gives up catching up with the server history: the document has to be loaded again.
+   */
+  private void failCatchUp(String message) {
+    logger.warning(message);
+    disconnect();
+    listener.onError(new IllegalStateException(message));
+  }
+
   /**
    * @return true if there are no queued or unacknowledged ops
    */
@@ -238,13 +381,16 @@ public class OperationChannel<O extends Operation<?>> {
     return state != State.UNINITIALISED;
   }
 
-  private void maybeEagerlyHandleAck(double appliedAt) {
+  private void maybeEagerlyHandleAck(long appliedAt) {
     final O ownOp = queue.ackOpIfVersionMatches(appliedAt);
     if (ownOp == null) {
       return;
     }
 
-    logger.log(Level.INFO, "Eagerly acked @" + appliedAt);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Eagerly acked @" + appliedAt);
+    }
+    traceAck(appliedAt);
 
     // Special optimization: there were no concurrent ops on the server,
     // so we don't need to wait for them or even our own ops on the channel.
@@ -257,18 +403,30 @@ public class OperationChannel<O extends Operation<?>> {
   }
 
   private void maybeSend() {
-    if (queue.unackedClientOp() != null) {
-      logger.log(Level.INFO, state + ", Has 1 unacked...");
+    int unacked = queue.unackedClientOpCount();
+    if (unacked >= pipelineDepth || (isPipelineBroken && unacked > 0)) {
+      if (logger.isLoggable(Level.FINER)) {
+        logger.finer(state + ", Has " + unacked + " unacked...");
+      }
       return;
     }
 
     if (queue.hasQueuedClientOps()) {
-      queue.pushQueuedOpsToUnacked();
-      sendUnackedOps();
+      isPipelineBroken = false;
+      O op = queue.pushQueuedOpsToUnacked();
+      sendCount++;
+      sentOpCount += queuedOps;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Composed " + queuedOps + " ops into send #" + sendCount + ", "
+            + ((double) sentOpCount / sendCount) + " ops per send on average");
+      }
+      queuedOps = 0;
+      lastSendTime = System.currentTimeMillis();
+      sendUnackedOp(op, queue.version() + unacked, unacked);
     }
   }
 
-  private void onAckOwnOperation(double appliedAt, O ackedOp) {
+  private void onAckOwnOperation(long appliedAt, O ackedOp) {
     boolean alreadyAckedByXhr = queue.expectedAck(appliedAt);
     if (alreadyAckedByXhr) {
       // Nothing to do, just receiving expected operations that we've already handled by the
@@ -277,40 +435,154 @@ public class OperationChannel<O extends Operation<?>> {
     }
 
     queue.ackClientOp(appliedAt);
-    logger.log(Level.INFO, "Ack @" + appliedAt);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Ack @" + appliedAt);
+    }
+    traceAck(appliedAt);
 
     // If we have more ops to send and no unacknowledged ops, then schedule a send.
     acked();
     listener.onAck(ackedOp, isClean());
   }
 
-  private void onIncomingOperation(double appliedAt, O operation) {
-    logger.log(Level.FINE, "Incoming applied @" + appliedAt + " " + state);
+  /**
+   * Handles the rejection of a chained op which is still unacked, by moving it back to the queued
+   * ops along with the ops sent after it.
+   */
+  private void onChainedOpRejected(long version) {
+    int index = (int) (version - queue.version());
+    if (index < 0 || index >= queue.unackedClientOpCount()) {
+      // Already moved back along with an op sent before it
+      return;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Chained op rejected @" + version + ", " + (queue.unackedClientOpCount() - index)
+          + " ops to send again");
+    }
+    queue.requeueUnackedClientOps(index);
+    isPipelineBroken = true;
+    acked();
+  }
+
+  private void onIncomingOperation(long appliedAt, O operation) {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Incoming applied @" + appliedAt + " " + state);
+    }
+    if (queue.unackedClientOpCount() > 1) {
+      // The chained ops in flight are moved back to the queued ops, and will be rejected
+      pipelineBreaks++;
+    }
     queue.serverOp(appliedAt, operation);
     listener.onRemoteOp(operation);
   }
 
   /**
-   * Sends unacknowledged ops and transitions to the WAITING_ACK state
+   * Handles an op from the server history, as published on the watch topic or fetched to catch up.
+   * Ops past a gap are held until the missing ones have been fetched.
+   */
+  private void onServerOp(JsonObject opData) {
+    long appliedAt = Versions.get(opData, Key.VERSION);
+    long expected = queue.nextServerVersion();
+    if (appliedAt < expected) {
+      // Already received, e.g. fetched while catching up
+      return;
+    }
+    if (pendingOps != null || appliedAt > expected) {
+      boolean startsGap = pendingOps == null;
+      if (startsGap) {
+        pendingOps = Json.createArray();
+      }
+      pendingOps.push(opData);
+      if (startsGap) {
+        catchUp(expected, appliedAt);
+      }
+      return;
+    }
+    O op = transformer.createOperation(opData);
+    if (bus.getSessionId().equals(opData.getString(Key.SESSION_ID))) {
+      onAckOwnOperation(appliedAt, op);
+    } else {
+      onIncomingOperation(appliedAt, op);
+    }
+  }
+
+  /**
+   * Schedules sending the queued ops, once the send window since the previous send has elapsed or
+   * as soon as possible if enough ops are queued.
    */
-  private void sendUnackedOps() {
-    O unackedClientOp = queue.unackedClientOp();
-    assert unackedClientOp != null;
-    logger.log(Level.FINE, "Sending " + unackedClientOp + " @" + queue.version());
+  private void scheduleSend() {
+    boolean isFull = queuedOps >= maxOpsPerSend;
+    if (isMaybeSendTaskScheduled) {
+      if (isFull && sendTimerId != -1) {
+        Platform.scheduler().cancelTimer(sendTimerId);
+        sendTimerId = -1;
+        Platform.scheduler().scheduleDeferred(maybeSendTask);
+      }
+      return;
+    }
+    isMaybeSendTaskScheduled = true;
+    double delay = sendWindowMs - (System.currentTimeMillis() - lastSendTime);
+    if (isFull || delay <= 0) {
+      Platform.scheduler().scheduleDeferred(maybeSendTask);
+    } else {
+      sendTimerId = Platform.scheduler().scheduleDelay((int) Math.ceil(delay), maybeSendTask);
+    }
+  }
+
+  /**
+   * Sends an unacknowledged op and transitions to the WAITING_ACK state
+   *
+   * @param chained the number of ops sent before this one and not acked yet.
+   */
+  private void sendUnackedOp(O unackedClientOp, final long version, final int chained) {
+    if (logger.isLoggable(Level.FINEST)) {
+      // Serializing the op is costly: only done at the finest level, or for sampled traces
+      logger.finest("Sending " + unackedClientOp + " @" + version);
+    } else if (traceSampling > 0 && sendCount % traceSampling == 0
+        && logger.isLoggable(Level.INFO)) {
+      logger.info("Trace: send #" + sendCount + " @" + version + " " + unackedClientOp);
+      tracedSendTime = System.currentTimeMillis();
+    }
 
+    JsonObject opData = Versions.set((JsonObject) unackedClientOp.toJson(), Key.VERSION, version);
+    if (chained > 0) {
+      opData.set(Key.CHAINED, (double) chained);
+    }
     JsonObject delta =
-        Json.createObject().set("action", "post").set(Key.ID, id).set(Key.OP_DATA,
-            ((JsonObject) unackedClientOp.toJson()).set(Key.VERSION, queue.version()));
+        Json.createObject().set("action", "post").set(Key.ID, id).set(Key.OP_DATA, opData);
+    final int breaks = pipelineBreaks;
     bus.send(Constants.Topic.STORE, delta, new Handler<Message<JsonObject>>() {
       @Override
       public void handle(Message<JsonObject> message) {
         if (!isConnected()) {
           return;
         }
-        maybeEagerlyHandleAck(message.body().getNumber(Key.VERSION));
+        JsonObject body = message.body();
+        if (body == null || !body.has(Key.VERSION)) {
+          // A chained op moved back by a server op since it was sent is already queued again
+          if (chained > 0 && breaks == pipelineBreaks) {
+            onChainedOpRejected(version);
+          }
+          return;
+        }
+        maybeEagerlyHandleAck(Versions.get(body, Key.VERSION));
       }
     });
-    setState(State.WAITING_ACK);
+    if (state != State.WAITING_ACK) {
+      setState(State.WAITING_ACK);
+    }
+  }
+
+  /**
+   * Logs the ack of the last traced send. With pipelining, this is the first ack following it.
+   */
+  private void traceAck(long appliedAt) {
+    if (tracedSendTime < 0) {
+      return;
+    }
+    logger.info("Trace: acked @" + appliedAt + " after "
+        + (System.currentTimeMillis() - tracedSendTime) + "ms");
+    tracedSendTime = -1;
   }
 
   /**
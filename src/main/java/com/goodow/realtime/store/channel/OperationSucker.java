@@ -45,7 +45,7 @@ public class OperationSucker implements OperationChannel.Listener<CollaborativeO
     channel = new OperationChannel<CollaborativeOperation>(id, transformer, bus, this);
   }
 
-  public void load(final DocumentBridge bridge, double version) {
+  public void load(final DocumentBridge bridge, long version) {
     this.bridge = bridge;
     bridge.setOutputSink(new OutputSink() {
       @Override
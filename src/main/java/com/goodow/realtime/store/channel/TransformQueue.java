@@ -15,7 +15,6 @@ package com.goodow.realtime.store.channel;
 
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
-import com.goodow.realtime.json.JsonArray.ListIterator;
 import com.goodow.realtime.operation.Operation;
 import com.goodow.realtime.operation.Transformer;
 import com.goodow.realtime.operation.util.Pair;
@@ -24,35 +23,45 @@ import com.goodow.realtime.operation.util.Pair;
  * Simple implementation of main concurrency control logic, independent of transport concerns.
  * 
  * <p>
- * For efficiency, client ops are also compacted before transforming and before sending.
+ * For efficiency, client ops are also compacted before transforming and before sending: queued
+ * client ops are kept composed into a single op as they are queued. Server ops waiting to be
+ * received are never composed, since each one keeps the user and session which made it: a client
+ * op is transformed against each of them in place.
+ *
+ * <p>
+ * Several unacked client ops may be in flight, each one sent at the version following the previous
+ * one (see {@link Constants.Key#CHAINED}). A server op received while several ops are in flight
+ * was applied at the version the first of them was sent at. The server transforms that first op,
+ * and rejects each of the others, since the server op falls among the ops it was chained to: they
+ * are moved back to the queued ops, already transformed, to be sent again. So are the ops the
+ * server rejects for another reason, see {@link #requeueUnackedClientOps}.
  */
 public class TransformQueue<O extends Operation<?>> {
   private final Transformer<O> transformer;
-  private double version = -1;
-  private double expectedAckedClientOps = 0;
-  private JsonArray serverOps = Json.createArray();
-  private JsonArray queuedClientOps = Json.createArray();
-  private O unackedClientOp;
+  private long version = -1;
+  private int expectedAckedClientOps = 0;
+  private JsonArray serverOps = Json.createArray(); // ArrayList<O>
+  private O queuedClientOp;
+  private JsonArray unackedClientOps = Json.createArray(); // ArrayList<O>, oldest first
 
   public TransformQueue(Transformer<O> transformer) {
     this.transformer = transformer;
   }
 
-  public void ackClientOp(double appliedAt) {
+  public void ackClientOp(long appliedAt) {
     checkAppliedVersion(appliedAt);
     assert expectedAckedClientOps == 0 : "must call expectedAck, there are "
         + expectedAckedClientOps + " expectedAckedClientOps";
-    assert unackedClientOp != null : this + ": unackedClientOp is null; applied @" + appliedAt;
+    assert unackedClientOps.length() > 0 : this + ": unackedClientOp is null; applied @"
+        + appliedAt;
 
     version++;
-    unackedClientOp = null;
+    unackedClientOps.remove(0);
   }
 
-  public O ackOpIfVersionMatches(double appliedAt) {
-    if (appliedAt == version) {
-      assert unackedClientOp != null;
-      O toRtn = unackedClientOp;
-      unackedClientOp = null;
+  public O ackOpIfVersionMatches(long appliedAt) {
+    if (appliedAt == version && unackedClientOps.length() > 0) {
+      O toRtn = unackedClientOps.remove(0);
       expectedAckedClientOps++;
       version++;
       return toRtn;
@@ -62,24 +71,20 @@ public class TransformQueue<O extends Operation<?>> {
 
   public void clientOp(O clientOp) {
     if (serverOps.length() > 0) {
-      final JsonArray newServerOps = Json.createArray().push(clientOp);
-      serverOps.forEach(new ListIterator<O>() {
-        @SuppressWarnings("unchecked")
-        @Override
-        public void call(int index, O serverOp) {
-          Pair<O, O> pair =
-              transformer.transform((O) newServerOps.remove(newServerOps.length() - 1), serverOp);
-          newServerOps.push(pair.second).push(pair.first);
-        }
-      });
-      clientOp = newServerOps.remove(newServerOps.length() - 1);
+      // Rebuilt rather than replaced in place, which would shift the whole array for each op
+      JsonArray newServerOps = Json.createArray(); // ArrayList<O>
+      for (int i = 0, len = serverOps.length(); i < len; i++) {
+        Pair<O, O> pair = transformer.transform(clientOp, serverOps.<O> get(i));
+        newServerOps.push(pair.second);
+        clientOp = pair.first;
+      }
       serverOps = newServerOps;
     }
 
-    queuedClientOps.push(clientOp);
+    queuedClientOp = queuedClientOp == null ? clientOp : compose(queuedClientOp, clientOp);
   }
 
-  public boolean expectedAck(double appliedAt) {
+  public boolean expectedAck(long appliedAt) {
     if (expectedAckedClientOps == 0) {
       return false;
     }
@@ -91,20 +96,28 @@ public class TransformQueue<O extends Operation<?>> {
   }
 
   public boolean hasQueuedClientOps() {
-    return queuedClientOps.length() > 0;
+    return queuedClientOp != null;
   }
 
   public boolean hasServerOp() {
     return serverOps.length() > 0;
   }
 
-  public void init(double version) {
+  public void init(long version) {
     assert this.version == -1 : "Already at a version (" + this.version + "), can't init at "
         + version + ")";
     assert version >= 0 : "Initial version must be >= 0, not " + version;
     this.version = version;
   }
 
+  /**
+   * @return the version at which the next op received from the server should have been applied:
+   *         own ops eagerly acked are still expected, at the versions they were acked at.
+   */
+  public long nextServerVersion() {
+    return version - expectedAckedClientOps;
+  }
+
   public O peekServerOp() {
     assert hasServerOp() : "No server ops";
     return serverOps.<O> get(0);
@@ -113,15 +126,33 @@ public class TransformQueue<O extends Operation<?>> {
   /**
    * Pushes the queued client ops into the unacked ops, clearing the queued ops.
    * 
-   * @return see {@link #unackedClientOp()}
+   * @return the new unacked op, to be sent at version {@code version() + unackedClientOpCount() -
+   *         1}.
    */
   public O pushQueuedOpsToUnacked() {
-    assert unackedClientOp == null : "Queue contains unacknowledged operation: " + unackedClientOp;
+    assert queuedClientOp != null : "No queued client ops";
 
-    unackedClientOp = transformer.compose(queuedClientOps);
-    queuedClientOps = Json.createArray();
+    O op = queuedClientOp;
+    unackedClientOps.push(op);
+    queuedClientOp = null;
+    return op;
+  }
 
-    return unackedClientOp();
+  /**
+   * Moves the unacked client ops from the given index on back to the queued ops, ahead of the ops
+   * already queued, once the server rejected them.
+   */
+  public void requeueUnackedClientOps(int from) {
+    assert from >= 0 && from < unackedClientOps.length() : "No unacked client op #" + from;
+
+    JsonArray rejected = Json.createArray(); // ArrayList<O>
+    while (unackedClientOps.length() > from) {
+      rejected.push(unackedClientOps.remove(from));
+    }
+    if (queuedClientOp != null) {
+      rejected.push(queuedClientOp);
+    }
+    queuedClientOp = transformer.compose(rejected);
   }
 
   public O removeServerOp() {
@@ -129,48 +160,67 @@ public class TransformQueue<O extends Operation<?>> {
     return serverOps.<O> remove(0);
   }
 
-  public void serverOp(double appliedVersion, O serverOp) {
+  public void serverOp(long appliedVersion, O serverOp) {
     checkAppliedVersion(appliedVersion);
     assert expectedAckedClientOps == 0 : "server op applied @" + appliedVersion
         + " while expecting " + expectedAckedClientOps + " client ops";
     version++;
 
-    if (unackedClientOp != null) {
-      Pair<O, O> pair = transformer.transform(unackedClientOp, serverOp);
-      unackedClientOp = pair.first;
-      serverOp = pair.second;
+    int unacked = unackedClientOps.length();
+    if (unacked > 0) {
+      JsonArray newUnackedClientOps = Json.createArray(); // ArrayList<O>
+      for (int i = 0; i < unacked; i++) {
+        Pair<O, O> pair = transformer.transform(unackedClientOps.<O> get(i), serverOp);
+        newUnackedClientOps.push(pair.first);
+        serverOp = pair.second;
+      }
+      unackedClientOps = newUnackedClientOps;
     }
-    if (queuedClientOps.length() > 0) {
-      O composedClientOp = transformer.compose(queuedClientOps);
-      Pair<O, O> pair = transformer.transform(composedClientOp, serverOp);
-      queuedClientOps = Json.createArray().push(pair.first);
+    if (queuedClientOp != null) {
+      Pair<O, O> pair = transformer.transform(queuedClientOp, serverOp);
+      queuedClientOp = pair.first;
       serverOp = pair.second;
     }
+    if (unacked > 1) {
+      // The pipeline is broken: all the unacked ops but the first one will be rejected
+      requeueUnackedClientOps(1);
+    }
     serverOps.push(serverOp);
   }
 
   @Override
   public String toString() {
     return "TQ{ " + version + "\n  s:" + serverOps + "\n  exp: " + expectedAckedClientOps
-        + "\n  u:" + unackedClientOp + "\n  q:" + queuedClientOps + "\n}";
+        + "\n  u:" + unackedClientOps + "\n  q:" + queuedClientOp + "\n}";
   }
 
   /**
-   * @return the current unacked client op. Note: the behavior of this op after calling mutating
-   *         methods on the transform queue is undefined. This method should be called each time
-   *         immediately before use.
+   * @return the oldest unacked client op, or null if there is none. Note: the behavior of this op
+   *         after calling mutating methods on the transform queue is undefined. This method should
+   *         be called each time immediately before use.
    */
   public O unackedClientOp() {
-    return unackedClientOp;
+    return unackedClientOps.length() == 0 ? null : unackedClientOps.<O> get(0);
   }
 
-  public double version() {
+  /**
+   * @return the number of client ops sent and not acked yet.
+   */
+  public int unackedClientOpCount() {
+    return unackedClientOps.length();
+  }
+
+  public long version() {
     return version;
   }
 
-  private void checkAppliedVersion(double appliedVersion) {
+  private void checkAppliedVersion(long appliedVersion) {
     assert appliedVersion >= 0 : "Applied version " + appliedVersion + " must be >= 0";
     assert this.version == appliedVersion : "Version mismatch: @" + this.version + ", applied @"
         + appliedVersion;
   }
+
+  private O compose(O op1, O op2) {
+    return transformer.compose(Json.createArray().push(op1).push(op2));
+  }
 }
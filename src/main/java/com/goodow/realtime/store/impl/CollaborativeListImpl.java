@@ -37,7 +37,41 @@ import com.goodow.realtime.store.ValuesSetEvent;
 import java.util.Comparator;
 
 class CollaborativeListImpl extends CollaborativeObjectImpl implements CollaborativeList {
+  /**
+   * Applies list components to this list. It is reused by every call to consume, so it reads its
+   * state before firing any event: a listener may apply another component to the same list.
+   */
+  private class ConsumeTarget implements ListTarget<JsonArray> {
+    AbstractListComponent<JsonArray> op;
+    String userId;
+    String sessionId;
+
+    @Override
+    public void delete(int startIndex, int length) {
+      AbstractListComponent<JsonArray> op = this.op;
+      String userId = this.userId;
+      String sessionId = this.sessionId;
+      removeAndFireEvent(startIndex, length, sessionId, userId);
+      model.transformCursor(op, startIndex, length, false, userId, sessionId);
+    }
+
+    @Override
+    public void insert(int startIndex, JsonArray values) {
+      AbstractListComponent<JsonArray> op = this.op;
+      String userId = this.userId;
+      String sessionId = this.sessionId;
+      insertAndFireEvent(startIndex, values, sessionId, userId);
+      model.transformCursor(op, startIndex, values.length(), true, userId, sessionId);
+    }
+
+    @Override
+    public void replace(int startIndex, JsonArray values) {
+      replaceAndFireEvent(startIndex, values, sessionId, userId);
+    }
+  }
+
   private final JsonArray snapshot;
+  private final ConsumeTarget target = new ConsumeTarget();
 
   /**
    * @param model The document model.
@@ -153,6 +187,27 @@ class CollaborativeListImpl extends CollaborativeObjectImpl implements Collabora
     return snapshot.length();
   }
 
+  @Override public void move(int fromIndex, int toIndex, int length) {
+    int total = length();
+    if (length <= 0 || fromIndex < 0 || fromIndex + length > total || toIndex < 0
+        || toIndex > total || (toIndex > fromIndex && toIndex < fromIndex + length)) {
+      throw new ArrayIndexOutOfBoundsException("FromIndex: " + fromIndex + ", ToIndex: "
+          + toIndex + ", Length: " + length + ", Size: " + total);
+    }
+    if (toIndex == fromIndex || toIndex == fromIndex + length) {
+      return;
+    }
+    JsonArray values = subValues(fromIndex, length);
+    model.beginCompoundOperation("list.move");
+    try {
+      consumeAndSubmit(new JsonDeleteComponent(id, fromIndex, values));
+      consumeAndSubmit(new JsonInsertComponent(id, toIndex < fromIndex ? toIndex : toIndex - length,
+                                               values));
+    } finally {
+      model.endCompoundOperation();
+    }
+  }
+
   @Override
   public int push(Object value) {
     insert(length(), value);
@@ -244,27 +299,13 @@ class CollaborativeListImpl extends CollaborativeObjectImpl implements Collabora
 
   @SuppressWarnings("unchecked")
   @Override
-  protected void consume(final String userId, final String sessionId,
-      OperationComponent<?> component) {
-    final AbstractListComponent<JsonArray> op = (AbstractListComponent<JsonArray>) component;
-    op.apply(new ListTarget<JsonArray>() {
-      @Override
-      public void delete(int startIndex, int length) {
-        removeAndFireEvent(startIndex, length, sessionId, userId);
-        model.transformCursor(op, userId, sessionId);
-      }
-
-      @Override
-      public void insert(int startIndex, JsonArray values) {
-        insertAndFireEvent(startIndex, values, sessionId, userId);
-        model.transformCursor(op, userId, sessionId);
-      }
-
-      @Override
-      public void replace(int startIndex, JsonArray values) {
-        replaceAndFireEvent(startIndex, values, sessionId, userId);
-      }
-    });
+  protected void consume(String userId, String sessionId, OperationComponent<?> component) {
+    AbstractListComponent<JsonArray> op = (AbstractListComponent<JsonArray>) component;
+    target.op = op;
+    target.userId = userId;
+    target.sessionId = sessionId;
+    op.apply(target);
+    target.op = null;
   }
 
   @Override
@@ -302,62 +343,68 @@ class CollaborativeListImpl extends CollaborativeObjectImpl implements Collabora
     }
   }
 
-  private void insertAndFireEvent(final int index, JsonArray values, String sessionId,
-                                  String userId) {
+  private void insertAndFireEvent(int index, JsonArray values, String sessionId, String userId) {
     assert index <= length();
-    final JsonArray objects = Json.createArray();
-    values.forEach(new ListIterator<JsonArray>() {
-      @Override
-      public void call(int idx, JsonArray value) {
+    JsonArray objects = hasListeners(EventType.VALUES_ADDED) ? Json.createArray() : null;
+    for (int i = 0, len = values.length(); i < len; i++) {
+      JsonArray value = values.getArray(i);
+      if (objects != null) {
         objects.push(JsonSerializer.deserializeObject(value, model.objects));
-        snapshot.insert(index + idx, value);
-        model.addOrRemoveParent(value, id, true);
-        model.bytesUsed += (value == null ? "null" : value.toJsonString()).length();
       }
-    });
-    ValuesAddedEvent event =
-        new ValuesAddedEventImpl(event(sessionId, userId).set("index", index).set("values", objects));
-    fireEvent(event);
+      snapshot.insert(index + i, value);
+      model.addOrRemoveParent(value, id, true);
+      updateBytesUsed(JsonSerializer.sizeOf(value) + 1);
+    }
+    if (objects != null) {
+      ValuesAddedEvent event = new ValuesAddedEventImpl(
+          event(sessionId, userId).set("index", index).set("values", objects));
+      fireEvent(event);
+    }
   }
 
   private void removeAndFireEvent(int index, int length, String sessionId, String userId) {
     assert index + length <= length();
-    JsonArray objects = Json.createArray();
+    JsonArray objects = hasListeners(EventType.VALUES_REMOVED) ? Json.createArray() : null;
     for (int i = 0; i < length; i++) {
-      objects.push(get(index));
+      if (objects != null) {
+        objects.push(get(index));
+      }
       JsonArray value = snapshot.getArray(index);
       snapshot.remove(index);
       model.addOrRemoveParent(value, id, false);
-      model.bytesUsed -= (value == null ? "null" : value.toJsonString()).length();
+      updateBytesUsed(-JsonSerializer.sizeOf(value) - 1);
+    }
+    if (objects != null) {
+      ValuesRemovedEvent event = new ValuesRemovedEventImpl(
+          event(sessionId, userId).set("index", index).set("values", objects));
+      fireEvent(event);
     }
-    ValuesRemovedEvent event =
-        new ValuesRemovedEventImpl(event(sessionId, userId).set("index", index).set("values", objects));
-    fireEvent(event);
   }
 
-  private void replaceAndFireEvent(final int index, JsonArray values, String sessionId,
-                                   String userId) {
+  private void replaceAndFireEvent(int index, JsonArray values, String sessionId, String userId) {
     assert index + values.length() <= length();
-    final JsonArray oldObjects = Json.createArray();
-    final JsonArray newObjects = Json.createArray();
-    values.forEach(new ListIterator<JsonArray>() {
-      @Override
-      public void call(int idx, JsonArray newValue) {
-        oldObjects.push(get(index + idx));
+    boolean fire = hasListeners(EventType.VALUES_SET);
+    JsonArray oldObjects = fire ? Json.createArray() : null;
+    JsonArray newObjects = fire ? Json.createArray() : null;
+    for (int i = 0, len = values.length(); i < len; i++) {
+      JsonArray newValue = values.getArray(i);
+      if (fire) {
+        oldObjects.push(get(index + i));
         newObjects.push(JsonSerializer.deserializeObject(newValue, model.objects));
-        JsonArray oldValue = snapshot.getArray(index + idx);
-        snapshot.remove(index + idx);
-        snapshot.insert(index + idx++, newValue);
-        model.addOrRemoveParent(oldValue, id, false);
-        model.addOrRemoveParent(newValue, id, true);
-        model.bytesUsed -= (oldValue == null ? "null" : oldValue.toJsonString()).length();
-        model.bytesUsed += (newValue == null ? "null" : newValue.toJsonString()).length();
       }
-    });
-    ValuesSetEvent event =
-        new ValuesSetEventImpl(event(sessionId, userId).set("index", index).set("oldValues",
-            oldObjects).set("newValues", newObjects));
-    fireEvent(event);
+      JsonArray oldValue = snapshot.getArray(index + i);
+      snapshot.remove(index + i);
+      snapshot.insert(index + i, newValue);
+      model.addOrRemoveParent(oldValue, id, false);
+      model.addOrRemoveParent(newValue, id, true);
+      updateBytesUsed(JsonSerializer.sizeOf(newValue) - JsonSerializer.sizeOf(oldValue));
+    }
+    if (fire) {
+      ValuesSetEvent event =
+          new ValuesSetEventImpl(event(sessionId, userId).set("index", index).set("oldValues",
+              oldObjects).set("newValues", newObjects));
+      fireEvent(event);
+    }
   }
 
   private JsonArray subValues(int startIndex, int length) {
@@ -30,7 +30,25 @@ import com.goodow.realtime.store.EventType;
 import com.goodow.realtime.store.ValueChangedEvent;
 
 class CollaborativeMapImpl extends CollaborativeObjectImpl implements CollaborativeMap {
+  /**
+   * Applies map components to this map. It is reused by every call to consume.
+   */
+  private class ConsumeTarget implements MapTarget<JsonArray> {
+    String userId;
+    String sessionId;
+
+    @Override
+    public void set(String key, JsonArray newValue) {
+      if (newValue == null) {
+        removeAndFireEvent(key, sessionId, userId);
+      } else {
+        putAndFireEvent(key, newValue, sessionId, userId);
+      }
+    }
+  }
+
   private final JsonObject snapshot;
+  private final ConsumeTarget target = new ConsumeTarget();
 
   CollaborativeMapImpl(ModelImpl model) {
     super(model);
@@ -42,14 +60,7 @@ class CollaborativeMapImpl extends CollaborativeObjectImpl implements Collaborat
   }
 
   @Override public void clear() {
-    model.beginCompoundOperation("map.clear");
-    keys().forEach(new JsonArray.ListIterator<String>() {
-      @Override
-      public void call(int index, String key) {
-        remove(key);
-      }
-    });
-    model.endCompoundOperation();
+    removeAll(keys());
   }
 
   @Override@SuppressWarnings("unchecked")
@@ -96,6 +107,27 @@ class CollaborativeMapImpl extends CollaborativeObjectImpl implements Collaborat
     return oldValue;
   }
 
+  @Override
+  public void removeAll(JsonArray keys) {
+    int length = keys.length();
+    // Check every key first so that an invalid one doesn't leave a partial mutation
+    for (int i = 0; i < length; i++) {
+      checkKey(keys.getString(i));
+    }
+    model.beginCompoundOperation("map.removeAll");
+    try {
+      for (int i = 0; i < length; i++) {
+        String key = keys.getString(i);
+        JsonArray oldValue = snapshot.getArray(key);
+        if (oldValue != null) {
+          consumeAndSubmit(new JsonMapComponent(id, key, oldValue, null));
+        }
+      }
+    } finally {
+      model.endCompoundOperation();
+    }
+  }
+
   @Override
   public <T> T set(String key, Object value) {
     checkKey(key);
@@ -109,6 +141,31 @@ class CollaborativeMapImpl extends CollaborativeObjectImpl implements Collaborat
     return oldObject;
   }
 
+  @Override
+  public void setAll(JsonObject values) {
+    JsonArray keys = values.keys();
+    JsonArray serializedValues = Json.createArray();
+    for (int i = 0, len = keys.length(); i < len; i++) {
+      String key = keys.getString(i);
+      checkKey(key);
+      // Serialize everything first so that an invalid value doesn't leave a partial mutation
+      serializedValues.push(JsonSerializer.serializeObject(values.get(key)));
+    }
+    model.beginCompoundOperation("map.setAll");
+    try {
+      for (int i = 0, len = keys.length(); i < len; i++) {
+        String key = keys.getString(i);
+        JsonArray serializedValue = serializedValues.getArray(i);
+        JsonArray oldValue = snapshot.getArray(key);
+        if (!JsonMapComponent.jsonEquals(oldValue, serializedValue)) {
+          consumeAndSubmit(new JsonMapComponent(id, key, oldValue, serializedValue));
+        }
+      }
+    } finally {
+      model.endCompoundOperation();
+    }
+  }
+
   @Override public int size() {
     return snapshot.size();
   }
@@ -143,20 +200,10 @@ class CollaborativeMapImpl extends CollaborativeObjectImpl implements Collaborat
 
   @SuppressWarnings("unchecked")
   @Override
-  protected void consume(final String userId, final String sessionId,
-      final OperationComponent<?> component) {
-    ((Operation<MapTarget<JsonArray>>) component).apply(new MapTarget<JsonArray>() {
-      @Override
-      public void set(String key, JsonArray newValue) {
-        if (newValue == null) {
-          removeAndFireEvent(key, sessionId, userId);
-          model.bytesUsed -= component.toString().length();
-          model.bytesUsed -= 2;
-        } else {
-          putAndFireEvent(key, newValue, sessionId, userId);
-        }
-      }
-    });
+  protected void consume(String userId, String sessionId, OperationComponent<?> component) {
+    target.userId = userId;
+    target.sessionId = sessionId;
+    ((Operation<MapTarget<JsonArray>>) component).apply(target);
   }
 
   @Override
@@ -184,30 +231,43 @@ class CollaborativeMapImpl extends CollaborativeObjectImpl implements Collaborat
 
   private void putAndFireEvent(String key, JsonArray newValue, String sessionId, String userId) {
     assert null != newValue;
-    Object newObject = JsonSerializer.deserializeObject(newValue, model.objects);
-    ValueChangedEvent event =
-        new ValueChangedEventImpl(event(sessionId, userId).set("property", key).set("oldValue",
-            get(key)).set("newValue", newObject));
+    ValueChangedEvent event = null;
+    if (hasListeners(EventType.VALUE_CHANGED)) {
+      Object newObject = JsonSerializer.deserializeObject(newValue, model.objects);
+      event = new ValueChangedEventImpl(event(sessionId, userId).set("property", key).set(
+          "oldValue", get(key)).set("newValue", newObject));
+    }
     if (snapshot.has(key)) {
       JsonArray oldValue = snapshot.getArray(key);
       model.addOrRemoveParent(oldValue, id, false);
-      model.bytesUsed -= oldValue.toJsonString().length();
+      updateBytesUsed(-sizeOfEntry(key, oldValue));
     }
     snapshot.set(key, newValue);
     model.addOrRemoveParent(newValue, id, true);
-    fireEvent(event);
-    model.bytesUsed += newValue.toJsonString().length();
+    if (event != null) {
+      fireEvent(event);
+    }
+    updateBytesUsed(sizeOfEntry(key, newValue));
   }
 
   private void removeAndFireEvent(String key, String sessionId, String userId) {
     assert has(key);
     JsonArray oldValue = snapshot.getArray(key);
-    ValueChangedEvent event =
-        new ValueChangedEventImpl(event(sessionId, userId).set("property", key).set("oldValue",
-            get(key)).set("newValue", null));
+    ValueChangedEvent event = null;
+    if (hasListeners(EventType.VALUE_CHANGED)) {
+      event = new ValueChangedEventImpl(event(sessionId, userId).set("property", key).set(
+          "oldValue", get(key)).set("newValue", null));
+    }
     snapshot.remove(key);
     model.addOrRemoveParent(oldValue, id, false);
-    fireEvent(event);
-    model.bytesUsed -= oldValue.toJsonString().length();
+    if (event != null) {
+      fireEvent(event);
+    }
+    updateBytesUsed(-sizeOfEntry(key, oldValue));
+  }
+
+  private static int sizeOfEntry(String key, JsonArray value) {
+    // "<key>":<value> and its separator
+    return JsonSerializer.sizeOf(key) + JsonSerializer.sizeOf(value) + 2;
   }
 }
@@ -25,6 +25,8 @@ import com.goodow.realtime.store.ObjectChangedEvent;
 
 abstract class CollaborativeObjectImpl implements CollaborativeObject {
   String id;
+  /* An estimate of the number of bytes used by data stored in this object. */
+  double bytesUsed;
   final ModelImpl model;
 
   /**
@@ -43,6 +45,13 @@ abstract class CollaborativeObjectImpl implements CollaborativeObject {
     return addEventListener(EventType.OBJECT_CHANGED, handler, false);
   }
 
+  /**
+   * @return An estimate of the number of bytes used by data stored in this object.
+   */
+  public double bytesUsed() {
+    return bytesUsed;
+  }
+
   @Override public String id() {
     return id;
   }
@@ -67,5 +76,20 @@ abstract class CollaborativeObjectImpl implements CollaborativeObject {
     model.document.scheduleEvent(event);
   }
 
+  /**
+   * @return Whether an event of the given type fired on this object would reach any listener.
+   */
+  boolean hasListeners(EventType type) {
+    return model.document.hasListeners(id, type);
+  }
+
+  /**
+   * Adjusts the size estimate of this object and of its model.
+   */
+  void updateBytesUsed(double delta) {
+    bytesUsed += delta;
+    model.bytesUsed += delta;
+  }
+
   abstract OperationComponent<?>[] toInitialization();
 }
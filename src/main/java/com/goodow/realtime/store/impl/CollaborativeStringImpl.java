@@ -30,7 +30,43 @@ import com.goodow.realtime.store.TextDeletedEvent;
 import com.goodow.realtime.store.TextInsertedEvent;
 
 class CollaborativeStringImpl extends CollaborativeObjectImpl implements CollaborativeString {
+  /**
+   * Applies string components to this string. It is reused by every call to consume, so it reads
+   * its state before firing any event: a listener may apply another component to the same string.
+   */
+  private class ConsumeTarget implements ListTarget<String> {
+    AbstractListComponent<String> op;
+    String userId;
+    String sessionId;
+
+    @Override
+    public void delete(int startIndex, int length) {
+      AbstractListComponent<String> op = this.op;
+      String userId = this.userId;
+      String sessionId = this.sessionId;
+      deleteAndFireEvent(startIndex, length, sessionId, userId);
+      model.transformCursor(op, startIndex, length, false, userId, sessionId);
+    }
+
+    @Override
+    public void insert(int startIndex, String values) {
+      AbstractListComponent<String> op = this.op;
+      String userId = this.userId;
+      String sessionId = this.sessionId;
+      insertAndFireEvent(startIndex, values, sessionId, userId);
+      model.transformCursor(op, startIndex, values.length(), true, userId, sessionId);
+    }
+
+    @Override
+    public void replace(int startIndex, String values) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /* Above this number of changed characters, setText replaces the changed region as a whole. */
+  static final int MAX_DIFF_LENGTH = 10000;
   private final StringBuilder snapshot;
+  private final ConsumeTarget target = new ConsumeTarget();
 
   CollaborativeStringImpl(ModelImpl model) {
     super(model);
@@ -87,29 +123,47 @@ class CollaborativeStringImpl extends CollaborativeObjectImpl implements Collabo
     if (text == null) {
       throw new IllegalArgumentException("Expected string for text, but was: null");
     }
+    int oldLength = snapshot.length();
+    int newLength = text.length();
+    // Trim the common prefix and suffix, without splitting a surrogate pair
+    int maxPrefix = Math.min(oldLength, newLength);
+    int prefix = 0;
+    while (prefix < maxPrefix && snapshot.charAt(prefix) == text.charAt(prefix)) {
+      prefix++;
+    }
+    if (prefix > 0 && Character.isHighSurrogate(text.charAt(prefix - 1))) {
+      prefix--;
+    }
+    int maxSuffix = maxPrefix - prefix;
+    int suffix = 0;
+    while (suffix < maxSuffix
+        && snapshot.charAt(oldLength - 1 - suffix) == text.charAt(newLength - 1 - suffix)) {
+      suffix++;
+    }
+    if (suffix > 0 && Character.isLowSurrogate(text.charAt(newLength - suffix))) {
+      suffix--;
+    }
+    int oldEnd = oldLength - suffix;
+    int newEnd = newLength - suffix;
+    if (prefix == oldEnd && prefix == newEnd) {
+      return;
+    }
     model.beginCompoundOperation("replaceText");
-    Platform.diff().diff(getText(), text, new Diff.ListTarget<String>() {
-      @Override
-      public void insert(int startIndex, String values) {
-        insertString(startIndex, values);
+    try {
+      if (prefix == oldEnd) {
+        insertString(prefix, text.substring(prefix, newEnd));
+      } else if (prefix == newEnd) {
+        removeRange(prefix, oldEnd);
+      } else if ((oldEnd - prefix) + (newEnd - prefix) > MAX_DIFF_LENGTH) {
+        // Too large to diff within a bounded time: replace the whole changed region
+        removeRange(prefix, oldEnd);
+        insertString(prefix, text.substring(prefix, newEnd));
+      } else {
+        diff(prefix, snapshot.substring(prefix, oldEnd), text.substring(prefix, newEnd));
       }
-
-      @Override
-      public void remove(int startIndex, int length) {
-        removeRange(startIndex, startIndex + length);
-      }
-
-      @Override
-      public void replace(int startIndex, String values) {
-        throw new UnsupportedOperationException();
-      }
-
-      @Override
-      public void move(int fromIndex, int toIndex, int length) {
-        throw new UnsupportedOperationException();
-      }
-    });
-    model.endCompoundOperation();
+    } finally {
+      model.endCompoundOperation();
+    }
   }
 
   @Override
@@ -119,27 +173,13 @@ class CollaborativeStringImpl extends CollaborativeObjectImpl implements Collabo
 
   @SuppressWarnings("unchecked")
   @Override
-  protected void consume(final String userId, final String sessionId,
-      final OperationComponent<?> component) {
-    final AbstractListComponent<String> op = (AbstractListComponent<String>) component;
-    op.apply(new ListTarget<String>() {
-      @Override
-      public void delete(int startIndex, int length) {
-        deleteAndFireEvent(startIndex, length, sessionId, userId);
-        model.transformCursor(op, userId, sessionId);
-      }
-
-      @Override
-      public void insert(int startIndex, String values) {
-        insertAndFireEvent(startIndex, values, sessionId, userId);
-        model.transformCursor(op, userId, sessionId);
-      }
-
-      @Override
-      public void replace(int startIndex, String values) {
-        throw new UnsupportedOperationException();
-      }
-    });
+  protected void consume(String userId, String sessionId, OperationComponent<?> component) {
+    AbstractListComponent<String> op = (AbstractListComponent<String>) component;
+    target.op = op;
+    target.userId = userId;
+    target.sessionId = sessionId;
+    op.apply(target);
+    target.op = null;
   }
 
   @Override
@@ -159,24 +199,60 @@ class CollaborativeStringImpl extends CollaborativeObjectImpl implements Collabo
     }
   }
 
+  /**
+   * Applies the diff between two versions of the text region starting at offset.
+   */
+  private void diff(final int offset, String before, String after) {
+    Platform.diff().diff(before, after, new Diff.ListTarget<String>() {
+      @Override
+      public void insert(int startIndex, String values) {
+        insertString(offset + startIndex, values);
+      }
+
+      @Override
+      public void remove(int startIndex, int length) {
+        removeRange(offset + startIndex, offset + startIndex + length);
+      }
+
+      @Override
+      public void replace(int startIndex, String values) {
+        remove(startIndex, values.length());
+        insert(startIndex, values);
+      }
+
+      @Override
+      public void move(int fromIndex, int toIndex, int length) {
+        String text = snapshot.substring(offset + fromIndex, offset + fromIndex + length);
+        remove(fromIndex, length);
+        insert(toIndex < fromIndex ? toIndex : toIndex - length, text);
+      }
+    });
+  }
+
   private void deleteAndFireEvent(int startIndex, int length, String sessionId, String userId) {
     int endIndex = startIndex + length;
     assert length > 0 && endIndex <= length();
-    String toDelete = snapshot.substring(startIndex, endIndex);
-    TextDeletedEvent event =
-        new TextDeletedEventImpl(event(sessionId, userId).set("index", startIndex)
-            .set("text", toDelete));
+    TextDeletedEvent event = null;
+    if (hasListeners(EventType.TEXT_DELETED)) {
+      String toDelete = snapshot.substring(startIndex, endIndex);
+      event = new TextDeletedEventImpl(event(sessionId, userId).set("index", startIndex)
+          .set("text", toDelete));
+    }
     snapshot.delete(startIndex, endIndex);
-    fireEvent(event);
-    model.bytesUsed -= length;
+    if (event != null) {
+      fireEvent(event);
+    }
+    updateBytesUsed(-length);
   }
 
   private void insertAndFireEvent(int index, String text, String sessionId, String userId) {
     assert index <= length();
-    TextInsertedEvent event =
-        new TextInsertedEventImpl(event(sessionId, userId).set("index", index).set("text", text));
     snapshot.insert(index, text);
-    fireEvent(event);
-    model.bytesUsed += text.length();
+    if (hasListeners(EventType.TEXT_INSERTED)) {
+      TextInsertedEvent event = new TextInsertedEventImpl(
+          event(sessionId, userId).set("index", index).set("text", text));
+      fireEvent(event);
+    }
+    updateBytesUsed(text.length());
   }
 }
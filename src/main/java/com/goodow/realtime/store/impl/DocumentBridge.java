@@ -24,11 +24,13 @@ import com.goodow.realtime.json.JsonObject.MapIterator;
 import com.goodow.realtime.operation.OperationComponent;
 import com.goodow.realtime.operation.OperationSink;
 import com.goodow.realtime.operation.create.CreateComponent;
+import com.goodow.realtime.operation.cursor.ReferenceShiftedComponent;
 import com.goodow.realtime.operation.impl.AbstractComponent;
 import com.goodow.realtime.operation.impl.CollaborativeOperation;
 import com.goodow.realtime.operation.impl.CollaborativeTransformer;
 import com.goodow.realtime.operation.undo.UndoManager;
 import com.goodow.realtime.operation.undo.UndoManagerFactory;
+import com.goodow.realtime.operation.util.Pair;
 import com.goodow.realtime.store.Collaborator;
 import com.goodow.realtime.store.Document;
 import com.goodow.realtime.store.Error;
@@ -62,6 +64,10 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
   private final ModelImpl model;
   private UndoManager<CollaborativeOperation> undoManager = UndoManagerFactory.getNoOp();
   OutputSink outputSink = OutputSink.VOID;
+  /* The nesting depth of the compound operation in progress, 0 if there is none. */
+  private int compoundDepth;
+  private JsonArray compoundComponents; // List<OperationComponent<?>>
+  private final CollaborativeTransformer transformer = new CollaborativeTransformer();
 
   public DocumentBridge(final Store store, String id, JsonArray components, JsonArray collaborators,
       final Handler<Error> errorHandler) {
@@ -81,7 +87,6 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
     });
 
     if (components != null && components.length() > 0) {
-      final CollaborativeTransformer transformer = new CollaborativeTransformer();
       CollaborativeOperation operation =
           transformer.createOperation(Json.createObject().set("op", components));
       applyLocally(operation);
@@ -93,7 +98,16 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
    */
   @Override
   public void consume(CollaborativeOperation operation) {
-    applyLocally(operation);
+    if (compoundDepth > 0 && compoundComponents.length() > 0) {
+      // The components of the compound operation in progress are already applied, but haven't
+      // been submitted: the remote operation doesn't know about them yet
+      Pair<CollaborativeOperation, CollaborativeOperation> pair =
+          transformer.transform(createOperation(compoundComponents), operation);
+      compoundComponents = pair.first.components;
+      applyLocally(pair.second);
+    } else {
+      applyLocally(operation);
+    }
     undoManager.nonUndoableOp(operation);
   }
 
@@ -120,8 +134,7 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
 
   public void setUndoEnabled(boolean undoEnabled) {
     undoManager =
-        undoEnabled ? UndoManagerFactory.createUndoManager() : UndoManagerFactory
-            .<CollaborativeOperation> getNoOp();
+        undoEnabled ? new UndoStack() : UndoManagerFactory.<CollaborativeOperation> getNoOp();
   }
 
   public JsonObject toJson() {
@@ -134,6 +147,9 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
     model.objects.forEach(new MapIterator<CollaborativeObjectImpl>() {
       @Override
       public void call(String key, CollaborativeObjectImpl object) {
+        if (object instanceof IndexReferenceImpl && isOrphan((IndexReferenceImpl) object)) {
+          return;
+        }
         OperationComponent<?>[] initializeComponents = object.toInitialization();
         boolean isCreateOp = true;
         for (OperationComponent<?> component : initializeComponents) {
@@ -160,16 +176,42 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
     return toJson().toJsonString();
   }
 
+  void beginCompoundOperation() {
+    if (compoundDepth++ == 0) {
+      compoundComponents = Json.createArray();
+    }
+  }
+
+  /**
+   * Applies a local component immediately. Outside of a compound operation it is submitted as an
+   * operation of its own, otherwise it is held back until the outermost compound operation ends.
+   */
   void consumeAndSubmit(OperationComponent<?> component) {
-    Collaborator me = document.collaborators.get(store.getBus().getSessionId());
-    CollaborativeOperation operation =
-        new CollaborativeOperation(me == null ? null : me.userId(), store.getBus().getSessionId(),
-                                   Json.createArray().push(component));
+    CollaborativeOperation operation = createOperation(Json.createArray().push(component));
     applyLocally(operation);
-    undoManager.checkpoint();
-    undoManager.undoableOp(operation);
-    mayUndoRedoStateChanged();
-    outputSink.consume(operation);
+    if (compoundDepth > 0) {
+      compoundComponents.push(component);
+      return;
+    }
+    submit(operation);
+  }
+
+  /**
+   * Ends a compound operation. When the outermost one ends, all the components applied since it
+   * began are submitted as a single operation, with a single undo entry.
+   */
+  void endCompoundOperation() {
+    if (compoundDepth == 0) {
+      throw new IllegalStateException("Not in a compound operation");
+    }
+    if (--compoundDepth > 0) {
+      return;
+    }
+    JsonArray components = compoundComponents;
+    compoundComponents = null;
+    if (components.length() > 0) {
+      submit(createOperation(components));
+    }
   }
 
   boolean isLocalSession(String sessionId) {
@@ -177,44 +219,34 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
   }
 
   void redo() {
+    checkNotInCompoundOperation();
     bypassUndoStack(undoManager.redo());
   }
 
   void undo() {
+    checkNotInCompoundOperation();
     bypassUndoStack(undoManager.undo());
   }
 
-  private void applyLocally(final CollaborativeOperation operation) {
-    operation.components.forEach(new ListIterator<AbstractComponent<?>>() {
-      @Override
-      public void call(int index, AbstractComponent<?> component) {
-        if (component.type != CreateComponent.TYPE) {
-          model.<CollaborativeObjectImpl>getObject(component.id).consume(operation.userId, operation.sessionId, component);
-          return;
+  private void applyLocally(CollaborativeOperation operation) {
+    JsonArray components = operation.components;
+    for (int i = 0, len = components.length(); i < len; i++) {
+      AbstractComponent<?> component = components.get(i);
+      if (component.type != CreateComponent.TYPE) {
+        CollaborativeObjectImpl obj = model.objects.get(component.id);
+        if (obj == null && component.type == ReferenceShiftedComponent.TYPE) {
+          // The reference was disposed and garbage collected from the snapshot
+          continue;
         }
-        CollaborativeObjectImpl obj;
-        switch (((CreateComponent) component).subType) {
-          case CreateComponent.MAP:
-            obj = new CollaborativeMapImpl(model);
-            break;
-          case CreateComponent.LIST:
-            obj = new CollaborativeListImpl(model);
-            break;
-          case CreateComponent.STRING:
-            obj = new CollaborativeStringImpl(model);
-            break;
-          case CreateComponent.INDEX_REFERENCE:
-            obj = new IndexReferenceImpl(model);
-            break;
-          default:
-            throw new RuntimeException("Shouldn't reach here!");
-        }
-        obj.id = component.id;
-        model.objects.set(obj.id, obj);
-        model.bytesUsed += component.toString().length();
-        model.bytesUsed++;
+        obj.consume(operation.userId, operation.sessionId, component);
+        continue;
       }
-    });
+      CollaborativeObjectImpl obj = createObject(((CreateComponent) component).subType);
+      obj.id = component.id;
+      model.objects.set(obj.id, obj);
+      // The create component [type,"<id>",subType] and its separator
+      obj.updateBytesUsed(JsonSerializer.sizeOf(obj.id) + 6);
+    }
   }
 
   /**
@@ -224,17 +256,60 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
    * @param operation
    */
   private void bypassUndoStack(CollaborativeOperation operation) {
+    if (operation == null) {
+      // Nothing to undo or redo: the entries left turned out to do nothing
+      mayUndoRedoStateChanged();
+      return;
+    }
     applyLocally(operation);
     outputSink.consume(operation);
     mayUndoRedoStateChanged();
   }
 
+  private void checkNotInCompoundOperation() {
+    if (compoundDepth > 0) {
+      throw new IllegalStateException("Can't undo or redo during a compound operation");
+    }
+  }
+
+  private CollaborativeObjectImpl createObject(int subType) {
+    switch (subType) {
+      case CreateComponent.MAP:
+        return new CollaborativeMapImpl(model);
+      case CreateComponent.LIST:
+        return new CollaborativeListImpl(model);
+      case CreateComponent.STRING:
+        return new CollaborativeStringImpl(model);
+      case CreateComponent.INDEX_REFERENCE:
+        return new IndexReferenceImpl(model);
+      default:
+        throw new RuntimeException("Shouldn't reach here!");
+    }
+  }
+
+  private CollaborativeOperation createOperation(JsonArray components) {
+    String sessionId = store.getBus().getSessionId();
+    Collaborator me = document.collaborators.get(sessionId);
+    return new CollaborativeOperation(me == null ? null : me.userId(), sessionId, components);
+  }
+
+  /**
+   * @return Whether a reference is disposed or dangling, and not referred to by any object.
+   */
+  private boolean isOrphan(IndexReferenceImpl ref) {
+    return (ref.index() == -1 || ref.referencedObject() == null)
+        && model.getParents(ref.id).length() == 0;
+  }
+
   private void mayUndoRedoStateChanged() {
     boolean canUndo = undoManager.canUndo();
     boolean canRedo = undoManager.canRedo();
     if (model.canUndo() != canUndo || model.canRedo() != canRedo) {
       model.canUndo = canUndo;
       model.canRedo = canRedo;
+      if (!document.hasListeners(null, EventType.UNDO_REDO_STATE_CHANGED)) {
+        return;
+      }
       UndoRedoStateChangedEvent event =
           new UndoRedoStateChangedEventImpl(model, Json.createObject().set("canUndo", canUndo)
               .set("canRedo", canRedo));
@@ -242,4 +317,11 @@ public class DocumentBridge implements OperationSink<CollaborativeOperation> {
                                   event);
     }
   }
+
+  private void submit(CollaborativeOperation operation) {
+    undoManager.checkpoint();
+    undoManager.undoableOp(operation);
+    mayUndoRedoStateChanged();
+    outputSink.consume(operation);
+  }
 }
\ No newline at end of file
@@ -39,6 +39,10 @@ class DocumentImpl implements Document {
   private final ModelImpl model;
   final Registrations handlerRegs;
   final JsonObject collaborators;
+  /* Number of live listeners, keyed by "objectId/eventType". */
+  private final JsonObject listenerCounts = Json.createObject(); // HashMap<String, Integer>
+  private final JsonObject typeListenerCounts = Json.createObject(); // HashMap<EventType, Integer>
+  private int objectChangedListeners;
 
   private boolean isEventsScheduled = false;
   private JsonArray eventsToFire; // ArrayList<BaseModelEvent>
@@ -166,6 +170,9 @@ class DocumentImpl implements Document {
     model.bridge.outputSink.close();
     collaborators.clear();
     handlerRegs.unregister();
+    listenerCounts.clear();
+    typeListenerCounts.clear();
+    objectChangedListeners = 0;
   }
 
   @Override public JsonArray getCollaborators() {
@@ -184,12 +191,12 @@ class DocumentImpl implements Document {
   }
 
   @SuppressWarnings("rawtypes")
-  Registration addEventListener(String objectId, EventType type, final Handler handler,
+  Registration addEventListener(String objectId, final EventType type, final Handler handler,
       boolean opt_capture) {
     if (type == null || handler == null) {
       throw new NullPointerException((type == null ? "type" : "handler") + " was null.");
     }
-    return handlerRegs.wrap(model.bridge.store.getBus().subscribeLocal(
+    final Registration handlerReg = handlerRegs.wrap(model.bridge.store.getBus().subscribeLocal(
         Constants.Topic.STORE + "/" + model.bridge.id + "/" +
         (objectId == null ? "" : (objectId + "/")) + type, new Handler<Message<?>>() {
        @SuppressWarnings(
@@ -199,6 +206,37 @@ class DocumentImpl implements Document {
          Platform.scheduler().handle(handler,message.body());
        }
      }));
+    final String key = listenerKey(objectId, type);
+    updateListenerCount(key, type, 1);
+    return new Registration() {
+      private boolean unregistered;
+
+      @Override
+      public void unregister() {
+        if (unregistered) {
+          return;
+        }
+        unregistered = true;
+        handlerReg.unregister();
+        updateListenerCount(key, type, -1);
+      }
+    };
+  }
+
+  /**
+   * Returns whether an event of the given type fired on the given object may reach a listener.
+   * Callers use this to skip building events nobody will receive.
+   *
+   * <p>
+   * Events bubble to the ancestors the object has when {@link #eventsTask} runs, not when the event
+   * is built: an object may be attached later in the same tick. So whenever any
+   * {@link EventType#OBJECT_CHANGED} listener exists, events on objects are always built.
+   *
+   * @param objectId The target object id, or null for document level events.
+   */
+  boolean hasListeners(String objectId, EventType type) {
+    return listenerCounts.has(listenerKey(objectId, type))
+        || (objectId != null && objectChangedListeners > 0);
   }
 
   void scheduleEvent(BaseModelEvent event) {
@@ -214,6 +252,37 @@ class DocumentImpl implements Document {
     }
   }
 
+  /**
+   * Returns whether an event of the given type fired on any object may reach a listener. This is a
+   * cheap check letting callers skip visiting objects one by one.
+   */
+  boolean hasAnyListeners(EventType type) {
+    return objectChangedListeners > 0 || typeListenerCounts.has(type.name());
+  }
+
+  private String listenerKey(String objectId, EventType type) {
+    return (objectId == null ? "" : objectId) + "/" + type;
+  }
+
+  private void updateListenerCount(String key, EventType type, int delta) {
+    int count = (listenerCounts.has(key) ? (int) listenerCounts.getNumber(key) : 0) + delta;
+    if (count > 0) {
+      listenerCounts.set(key, count);
+    } else {
+      listenerCounts.remove(key);
+    }
+    if (type == EventType.OBJECT_CHANGED) {
+      objectChangedListeners += delta;
+    }
+    int typeCount = (typeListenerCounts.has(type.name())
+        ? (int) typeListenerCounts.getNumber(type.name()) : 0) + delta;
+    if (typeCount > 0) {
+      typeListenerCounts.set(type.name(), typeCount);
+    } else {
+      typeListenerCounts.remove(type.name());
+    }
+  }
+
   private void fireEvent(BaseModelEventImpl event) {
     model.bridge.store.getBus().publishLocal(
         Constants.Topic.STORE + "/" + model.bridge.id + "/" + event.target + "/" + event.type, event);
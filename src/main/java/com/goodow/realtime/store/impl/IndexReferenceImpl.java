@@ -26,9 +26,12 @@ import com.goodow.realtime.store.IndexReference;
 import com.goodow.realtime.store.ReferenceShiftedEvent;
 
 class IndexReferenceImpl extends CollaborativeObjectImpl implements IndexReference {
-  private String referencedObjectId;
-  private int index = -1;
+  String referencedObjectId;
+  /* The index while this reference isn't registered in a ReferenceIndex. */
+  int index = -1;
   private boolean canBeDeleted;
+  ReferenceIndex references;
+  int slot;
 
   /**
    * @param model The document model.
@@ -45,8 +48,12 @@ class IndexReferenceImpl extends CollaborativeObjectImpl implements IndexReferen
     return canBeDeleted;
   }
 
+  @Override public void dispose() {
+    setIndex(-1);
+  }
+
   @Override public int index() {
-    return index;
+    return references == null ? index : references.index(slot);
   }
 
   @Override public <T extends CollaborativeObject> T referencedObject() {
@@ -54,18 +61,19 @@ class IndexReferenceImpl extends CollaborativeObjectImpl implements IndexReferen
   }
 
   @Override public void setIndex(int index) {
-    if (index == this.index) {
+    int oldIndex = index();
+    if (index == oldIndex) {
       return;
     }
     ReferenceShiftedComponent op =
-        new ReferenceShiftedComponent(id, referencedObjectId, index, canBeDeleted, this.index);
+        new ReferenceShiftedComponent(id, referencedObjectId, index, canBeDeleted, oldIndex);
     consumeAndSubmit(op);
   }
 
   @Override
   public JsonObject toJson() {
     JsonObject json = Json.createObject();
-    json.set("id", id).set("referencedObjectId", referencedObjectId).set("index", index).set(
+    json.set("id", id).set("referencedObjectId", referencedObjectId).set("index", index()).set(
         "canBeDeleted", canBeDeleted);
     return json;
   }
@@ -75,19 +83,23 @@ class IndexReferenceImpl extends CollaborativeObjectImpl implements IndexReferen
       OperationComponent<?> component) {
     ReferenceShiftedComponent op = (ReferenceShiftedComponent) component;
     assert op.oldIndex == index() || index() == -1;
-    referencedObjectId = op.referencedObjectId;
-    index = op.newIndex;
     canBeDeleted = op.canBeDeleted;
-    if (op.oldIndex != -1 && op.oldIndex != op.newIndex) {
-      ReferenceShiftedEvent event =
-          new ReferenceShiftedEventImpl(event(sessionId, userId).set("oldIndex", op.oldIndex).set(
-              "newIndex", op.newIndex));
+    model.moveIndexReference(this, op.referencedObjectId, op.newIndex);
+    referencedObjectId = op.referencedObjectId;
+    referenceShifted(userId, sessionId, op.oldIndex, op.newIndex);
+  }
+
+  void referenceShifted(String userId, String sessionId, int oldIndex, int newIndex) {
+    if (oldIndex != -1 && oldIndex != newIndex && hasListeners(EventType.REFERENCE_SHIFTED)) {
+      ReferenceShiftedEvent event = new ReferenceShiftedEventImpl(
+          event(sessionId, userId).set("oldIndex", oldIndex).set("newIndex", newIndex));
       fireEvent(event);
     }
   }
 
   @Override
   OperationComponent<?>[] toInitialization() {
+    int index = index();
     ReferenceShiftedComponent op =
         new ReferenceShiftedComponent(id, referencedObjectId, index, canBeDeleted, index);
     return new OperationComponent[] {new CreateComponent(id, CreateComponent.INDEX_REFERENCE), op};
@@ -16,9 +16,10 @@ package com.goodow.realtime.store.impl;
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.json.JsonType;
 import com.goodow.realtime.store.CollaborativeObject;
 
-class JsonSerializer {
+public class JsonSerializer {
   public static final int REFERENCE_TYPE = 2;
   private static final int VALUE_TYPE = 21;
 
@@ -83,4 +84,95 @@ class JsonSerializer {
     });
     return array;
   }
+
+  /**
+   * Estimates the length of the JSON encoding of a value by walking its structure, without
+   * encoding it.
+   *
+   * @param value a String, Number, Boolean, JsonObject, JsonArray or {@code null}.
+   */
+  public static int sizeOf(Object value) {
+    if (value == null) {
+      return 4;
+    } else if (value instanceof String) {
+      return sizeOfString((String) value);
+    } else if (value instanceof Number) {
+      return sizeOfNumber(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      return ((Boolean) value).booleanValue() ? 4 : 5;
+    } else if (value instanceof JsonArray) {
+      JsonArray array = (JsonArray) value;
+      int length = array.length();
+      int size = 2 + (length == 0 ? 0 : length - 1);
+      for (int i = 0; i < length; i++) {
+        size += sizeOf(array, i);
+      }
+      return size;
+    } else if (value instanceof JsonObject) {
+      JsonObject object = (JsonObject) value;
+      JsonArray keys = object.keys();
+      int length = keys.length();
+      int size = 2 + (length == 0 ? 0 : length - 1);
+      for (int i = 0; i < length; i++) {
+        String key = keys.getString(i);
+        size += sizeOfString(key) + 1 + sizeOf(object, key);
+      }
+      return size;
+    }
+    throw new IllegalArgumentException("Invalid JSON type: " + value.getClass().getName());
+  }
+
+  private static int sizeOf(JsonArray array, int index) {
+    JsonType type = array.getType(index);
+    switch (type) {
+      case NUMBER:
+        return sizeOfNumber(array.getNumber(index));
+      case BOOLEAN:
+        return array.getBoolean(index) ? 4 : 5;
+      case NULL:
+        return 4;
+      default:
+        return sizeOf(array.get(index));
+    }
+  }
+
+  private static int sizeOf(JsonObject object, String key) {
+    JsonType type = object.getType(key);
+    switch (type) {
+      case NUMBER:
+        return sizeOfNumber(object.getNumber(key));
+      case BOOLEAN:
+        return object.getBoolean(key) ? 4 : 5;
+      case NULL:
+        return 4;
+      default:
+        return sizeOf(object.get(key));
+    }
+  }
+
+  private static int sizeOfNumber(double number) {
+    long integral = (long) number;
+    if (integral != number || integral > 1e15 || integral < -1e15) {
+      return String.valueOf(number).length();
+    }
+    int size = integral < 0 ? 2 : 1;
+    for (integral = Math.abs(integral); integral >= 10; integral /= 10) {
+      size++;
+    }
+    return size;
+  }
+
+  private static int sizeOfString(String str) {
+    int size = str.length() + 2;
+    for (int i = 0, len = str.length(); i < len; i++) {
+      char c = str.charAt(i);
+      if (c == '"' || c == '\\') {
+        size++;
+      } else if (c < 0x20) {
+        // \b \t \n \f \r have a two characters escape, other control characters take six
+        size += (c >= '\b' && c <= '\r' && c != 0x0b) ? 1 : 5;
+      }
+    }
+    return size;
+  }
 }
@@ -46,19 +46,11 @@ class ModelImpl implements Model {
   boolean canRedo;
   final JsonObject objects = Json.createObject(); // LinkedHashMap<String, CollaborativeObject>
   private final JsonObject parents = Json.createObject(); // HashMap<String, List<String>>
-  private JsonObject indexReferences; // HashMap<String, List<String>>
+  private JsonObject indexReferences; // HashMap<String, ReferenceIndex>
   final DocumentImpl document;
   final DocumentBridge bridge;
   /* An estimate of the number of bytes used by data stored in the model. */
   double bytesUsed;
-  /**
-   * The current server version number for this model. The version number begins at 1 (the initial
-   * empty model) and is incremented each time the model is changed on the server (either by the
-   * current session or any other collaborator). Because this version number includes only changes
-   * that the server knows about, it is only updated while this client is connected to the Realtime
-   * API server and it does not include changes that have not yet been saved to the server.
-   */
-  double serverVersion;
 
   /**
    * @param bridge Internal utilities for the Realtime API.
@@ -74,19 +66,13 @@ class ModelImpl implements Model {
     return document.addEventListener(null, EventType.UNDO_REDO_STATE_CHANGED, handler, false);
   }
 
-  /**
-   * Starts a compound operation. If a name is given, that name will be recorded in the mutation for
-   * use in revision history, undo menus, etc. When beginCompoundOperation() is called, all
-   * subsequent edits to the data model will be batched together in the undo stack and revision
-   * history until endCompoundOperation() is called. Compound operations may be nested inside other
-   * compound operations. Note that the compound operation MUST start and end in the same
-   * synchronous execution block. If this invariant is violated, the data model will become invalid
-   * and all future changes will fail.
-   * 
-   * @param opt_name An optional name for this compound operation.
-   */
-  public void beginCompoundOperation(String opt_name) {
+  @Override public void beginCompoundOperation(String opt_name) {
     log.finer("beginCompoundOperation" + (opt_name == null ? "" : (" " + opt_name)));
+    bridge.beginCompoundOperation();
+  }
+
+  @Override public double bytesUsed() {
+    return bytesUsed;
   }
 
   @Override public boolean canRedo() {
@@ -122,13 +108,16 @@ class ModelImpl implements Model {
   @Override public CollaborativeList createList(JsonArray opt_initialValue) {
     String id = generateObjectId();
     beginCreationCompoundOperation();
-    bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.LIST));
-    if (opt_initialValue != null && opt_initialValue.length() > 0) {
-      JsonArray values = JsonSerializer.serializeObjects(opt_initialValue);
-      JsonInsertComponent op = new JsonInsertComponent(id, 0, values);
-      bridge.consumeAndSubmit(op);
+    try {
+      bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.LIST));
+      if (opt_initialValue != null && opt_initialValue.length() > 0) {
+        JsonArray values = JsonSerializer.serializeObjects(opt_initialValue);
+        JsonInsertComponent op = new JsonInsertComponent(id, 0, values);
+        bridge.consumeAndSubmit(op);
+      }
+    } finally {
+      endCompoundOperation();
     }
-    endCompoundOperation();
     return getObject(id);
   }
 
@@ -136,42 +125,45 @@ class ModelImpl implements Model {
   public CollaborativeMap createMap(JsonObject opt_initialValue) {
     final String id = generateObjectId();
     beginCreationCompoundOperation();
-    bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.MAP));
-    if (opt_initialValue != null && opt_initialValue.size() != 0) {
-      opt_initialValue.forEach(new JsonObject.MapIterator<Object>() {
-        @Override
-        public void call(String key, Object value) {
-          JsonArray serializedValue = JsonSerializer.serializeObject(value);
-          if (serializedValue == null) {
-            return;
+    try {
+      bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.MAP));
+      if (opt_initialValue != null && opt_initialValue.size() != 0) {
+        opt_initialValue.forEach(new JsonObject.MapIterator<Object>() {
+          @Override
+          public void call(String key, Object value) {
+            JsonArray serializedValue = JsonSerializer.serializeObject(value);
+            if (serializedValue == null) {
+              return;
+            }
+            JsonMapComponent op = new JsonMapComponent(id, key, null, serializedValue);
+            bridge.consumeAndSubmit(op);
           }
-          JsonMapComponent op = new JsonMapComponent(id, key, null, serializedValue);
-          bridge.consumeAndSubmit(op);
-        }
-      });
+        });
+      }
+    } finally {
+      endCompoundOperation();
     }
-    endCompoundOperation();
     return getObject(id);
   }
 
   @Override public CollaborativeString createString(String opt_initialValue) {
     String id = generateObjectId();
     beginCreationCompoundOperation();
-    bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.STRING));
-    if (opt_initialValue != null && !opt_initialValue.isEmpty()) {
-      StringInsertComponent op = new StringInsertComponent(id, 0, opt_initialValue);
-      bridge.consumeAndSubmit(op);
+    try {
+      bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.STRING));
+      if (opt_initialValue != null && !opt_initialValue.isEmpty()) {
+        StringInsertComponent op = new StringInsertComponent(id, 0, opt_initialValue);
+        bridge.consumeAndSubmit(op);
+      }
+    } finally {
+      endCompoundOperation();
     }
-    endCompoundOperation();
     return getObject(id);
   }
 
-  /**
-   * Ends a compound operation. This method will throw an exception if no compound operation is in
-   * progress.
-   */
-  public void endCompoundOperation() {
+  @Override public void endCompoundOperation() {
     log.finer("endCompoundOperation");
+    bridge.endCompoundOperation();
   }
 
   public <T extends CollaborativeObject> T getObject(String objectId) {
@@ -250,39 +242,60 @@ class ModelImpl implements Model {
     ReferenceShiftedComponent op =
         new ReferenceShiftedComponent(id, referencedObjectId, index, canBeDeleted, -1);
     beginCreationCompoundOperation();
-    bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.INDEX_REFERENCE));
-    bridge.consumeAndSubmit(op);
-    registerIndexReference(id, referencedObjectId);
-    endCompoundOperation();
+    try {
+      bridge.consumeAndSubmit(new CreateComponent(id, CreateComponent.INDEX_REFERENCE));
+      bridge.consumeAndSubmit(op);
+    } finally {
+      endCompoundOperation();
+    }
     return getObject(id);
   }
 
   void createRoot() {
     beginCreationCompoundOperation();
-    bridge.consumeAndSubmit(new CreateComponent(ROOT_ID, CreateComponent.MAP));
-    endCompoundOperation();
+    try {
+      bridge.consumeAndSubmit(new CreateComponent(ROOT_ID, CreateComponent.MAP));
+    } finally {
+      endCompoundOperation();
+    }
   }
 
-  void transformCursor(final AbstractListComponent op, final String userId,
-                       final String sessionId) {
+  /**
+   * Moves an index reference to a new index, keeping the per-object reference indexes up to date.
+   * A reference at -1, or to an object that doesn't exist, is not registered.
+   */
+  void moveIndexReference(IndexReferenceImpl ref, String referencedObjectId, int newIndex) {
+    ReferenceIndex oldReferences = ref.references;
+    if (oldReferences != null) {
+      oldReferences.remove(ref);
+      if (oldReferences.isEmpty()) {
+        indexReferences.remove(ref.referencedObjectId);
+      }
+    }
+    ref.index = newIndex;
+    if (newIndex == -1 || referencedObjectId == null || objects.get(referencedObjectId) == null) {
+      return;
+    }
+    if (indexReferences == null) {
+      indexReferences = Json.createObject();
+    }
+    ReferenceIndex references = indexReferences.get(referencedObjectId);
+    if (references == null) {
+      references = new ReferenceIndex();
+      indexReferences.set(referencedObjectId, references);
+    }
+    references.add(ref, newIndex);
+  }
+
+  void transformCursor(AbstractListComponent<?> op, int startIndex, int length, boolean isInsert,
+                       String userId, String sessionId) {
     if (indexReferences == null) {
       return;
     }
-    JsonArray cursors = indexReferences.getArray(op.id);
-    if (cursors != null) {
-      cursors.forEach(new ListIterator<String>() {
-        @Override
-        public void call(int idx, String indexReferenceId) {
-          IndexReferenceImpl indexReference = getObject(indexReferenceId);
-          int currentIndex = indexReference.index();
-          int newIndex = op.transformIndexReference(currentIndex, true,
-                                                    indexReference.canBeDeleted());
-          if (newIndex != currentIndex) {
-            indexReference.consume(userId, sessionId, new ReferenceShiftedComponent(
-                indexReferenceId, op.id, newIndex, indexReference.canBeDeleted(), currentIndex));
-          }
-        }
-      });
+    ReferenceIndex references = indexReferences.get(op.id);
+    if (references != null) {
+      references.transform(op, startIndex, length, isInsert,
+          document.hasAnyListeners(EventType.REFERENCE_SHIFTED), userId, sessionId);
     }
   }
 
@@ -296,16 +309,4 @@ class ModelImpl implements Model {
   private String generateObjectId() {
     return "gde" + new IdGenerator().next(14);
   }
-
-  private void registerIndexReference(String indexReference, String referencedObject) {
-    if (indexReferences == null) {
-      indexReferences = Json.createObject();
-    }
-    JsonArray list = indexReferences.getArray(referencedObject);
-    if (list == null) {
-      list = Json.createArray();
-      indexReferences.set(referencedObject, list);
-    }
-    list.push(indexReference);
-  }
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.operation.list.AbstractListComponent;
+
+/**
+ * The index references pointing into one collaborative list or string, ordered by index.
+ *
+ * The index of the reference in slot i is {@code bases[i]} plus the sum of the offsets of slots 0
+ * to i, kept in a Fenwick tree. Shifting every reference after an edit point is then a single
+ * O(log n) update of the tree; only the references at the edit point or inside a deleted range are
+ * transformed one by one.
+ *
+ * Slots are kept with gaps between them, so that adding or removing a reference doesn't move the
+ * others: a free slot keeps the index of the slot before it, and is shifted like a reference
+ * which can't be deleted. A reference is added into a free slot next to its place, or after
+ * moving the few references up to the nearest free slot; the slots are only laid out again when
+ * they become too full or too empty.
+ */
+final class ReferenceIndex {
+  private static final int MIN_CAPACITY = 4;
+
+  // The references by slot, null in a free slot
+  private IndexReferenceImpl[] refs = new IndexReferenceImpl[0];
+  private int[] bases = new int[0];
+  // Fenwick tree of offsets, 1-based
+  private int[] tree = new int[1];
+  private int size;
+
+  /**
+   * @return the current index of the reference in the given slot.
+   */
+  int index(int slot) {
+    int index = bases[slot];
+    for (int i = slot + 1; i > 0; i -= i & -i) {
+      index += tree[i];
+    }
+    return index;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void add(IndexReferenceImpl ref, int index) {
+    assert ref.references == null && index >= 0;
+    if ((size + 1) * 4 > refs.length * 3) {
+      layOut(Math.max(MIN_CAPACITY, (size + 1) * 2));
+    }
+    int at = firstSlotAfter(index);
+    int slot;
+    if (at > 0 && refs[at - 1] == null) {
+      slot = at - 1;
+    } else if (at < refs.length && refs[at] == null) {
+      slot = at;
+    } else {
+      int free = at;
+      while (free < refs.length && refs[free] != null) {
+        free++;
+      }
+      if (free < refs.length) {
+        for (; free > at; free--) {
+          move(free - 1, free);
+        }
+        slot = at;
+      } else {
+        free = at - 1;
+        while (refs[free] != null) {
+          free--;
+        }
+        for (; free < at - 1; free++) {
+          move(free + 1, free);
+        }
+        slot = at - 1;
+      }
+    }
+    bases[slot] += index - index(slot);
+    refs[slot] = ref;
+    ref.references = this;
+    ref.slot = slot;
+    size++;
+  }
+
+  /**
+   * Removes a reference. Its last index is written back to the reference.
+   */
+  void remove(IndexReferenceImpl ref) {
+    assert ref.references == this && refs[ref.slot] == ref;
+    ref.index = index(ref.slot);
+    ref.references = null;
+    // The slot keeps its index, which is still in order
+    refs[ref.slot] = null;
+    size--;
+    if (size * 8 < refs.length && refs.length > MIN_CAPACITY) {
+      layOut(Math.max(MIN_CAPACITY, size * 2));
+    }
+  }
+
+  /**
+   * Transforms the references against an insertion or a deletion of the referenced object.
+   *
+   * @param fireEvents whether any reference shifted listener may exist. If not, the references
+   *          shifted lazily are not visited at all.
+   */
+  void transform(AbstractListComponent<?> op, int startIndex, int length, boolean isInsert,
+                 boolean fireEvents, String userId, String sessionId) {
+    int capacity = refs.length;
+    int lo = firstSlotFrom(startIndex);
+    int hi = isInsert ? firstSlotAfter(startIndex) : firstSlotFrom(startIndex + length);
+    int delta = isInsert ? length : -length;
+    if (hi < capacity) {
+      for (int i = hi + 1; i <= capacity; i += i & -i) {
+        tree[i] += delta;
+      }
+      for (int slot = hi; fireEvents && slot < capacity; slot++) {
+        if (refs[slot] != null) {
+          int newIndex = index(slot);
+          refs[slot].referenceShifted(userId, sessionId, newIndex - delta, newIndex);
+        }
+      }
+    }
+    for (int slot = lo; slot < hi; slot++) {
+      IndexReferenceImpl ref = refs[slot];
+      int currentIndex = index(slot);
+      int newIndex =
+          op.transformIndexReference(currentIndex, true, ref != null && ref.canBeDeleted());
+      if (newIndex == -1) {
+        // The slot is freed, at the index a reference which can't be deleted would get
+        bases[slot] += op.transformIndexReference(currentIndex, true, false) - currentIndex;
+        refs[slot] = null;
+        size--;
+        ref.index = -1;
+        ref.references = null;
+        ref.referenceShifted(userId, sessionId, currentIndex, newIndex);
+        continue;
+      }
+      if (newIndex == currentIndex) {
+        continue;
+      }
+      bases[slot] += newIndex - currentIndex;
+      if (ref != null) {
+        ref.referenceShifted(userId, sessionId, currentIndex, newIndex);
+      }
+    }
+  }
+
+  /**
+   * @return the first slot whose index is greater than the given index, or the capacity if there
+   *         is none.
+   */
+  private int firstSlotAfter(int index) {
+    return firstSlotFrom(index + 1);
+  }
+
+  /**
+   * @return the first slot whose index is greater than or equal to the given index, or the
+   *         capacity if there is none.
+   */
+  private int firstSlotFrom(int index) {
+    int low = 0;
+    int high = refs.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (index(mid) < index) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Lays the references out again, spread evenly over the given number of slots.
+   */
+  private void layOut(int capacity) {
+    IndexReferenceImpl[] newRefs = new IndexReferenceImpl[capacity];
+    int[] newBases = new int[capacity];
+    int gap = capacity / Math.max(size, 1);
+    int newSlot = 0;
+    int index = 0;
+    for (int slot = 0; slot < refs.length; slot++) {
+      IndexReferenceImpl ref = refs[slot];
+      if (ref == null) {
+        continue;
+      }
+      index = index(slot);
+      newRefs[newSlot] = ref;
+      ref.slot = newSlot;
+      for (int end = newSlot + gap; newSlot < end; newSlot++) {
+        newBases[newSlot] = index;
+      }
+    }
+    for (; newSlot < capacity; newSlot++) {
+      newBases[newSlot] = index;
+    }
+    refs = newRefs;
+    bases = newBases;
+    tree = new int[capacity + 1];
+  }
+
+  /**
+   * Moves the reference in a slot to a free neighbouring slot, keeping its index.
+   */
+  private void move(int from, int to) {
+    IndexReferenceImpl ref = refs[from];
+    bases[to] += index(from) - index(to);
+    refs[to] = ref;
+    ref.slot = to;
+    refs[from] = null;
+  }
+}
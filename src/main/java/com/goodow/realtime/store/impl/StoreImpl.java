@@ -35,7 +35,7 @@ public class StoreImpl extends SubscribeOnlyStore {
   }
 
   @Override
-  protected void onLoaded(String id, Handler<Model> opt_initializer, double version,
+  protected void onLoaded(String id, Handler<Model> opt_initializer, long version,
       DocumentBridge bridge) {
     bridge.setUndoEnabled(true);
 
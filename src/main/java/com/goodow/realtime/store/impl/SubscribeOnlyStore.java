@@ -30,6 +30,7 @@ import com.goodow.realtime.store.Error;
 import com.goodow.realtime.store.Model;
 import com.goodow.realtime.store.channel.Constants;
 import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.channel.Versions;
 import com.goodow.realtime.store.impl.DocumentBridge.OutputSink;
 
 public class SubscribeOnlyStore extends MemoryStore {
@@ -44,18 +45,21 @@ public class SubscribeOnlyStore extends MemoryStore {
   @Override
   public void load(final String id, final Handler<Document> onLoaded,
       final Handler<Model> opt_initializer, final Handler<Error> opt_error) {
-    bus.send(Constants.Topic.STORE, Json.createObject().set(Key.ID, id), new Handler<Message<JsonObject>>() {
+    // The client only rebuilds the document from the snapshot
+    JsonObject request = Json.createObject().set(Key.ID, id).set(Key.FIELDS, Key.SNAPSHOT);
+    bus.send(Constants.Topic.STORE, request, new Handler<Message<JsonObject>>() {
       @Override
       public void handle(Message<JsonObject> message) {
         JsonObject body = message.body();
         if (!body.has(Key.VERSION)) {
-          body.set(Key.VERSION, 0);
+          Versions.set(body, Key.VERSION, 0);
         }
         final DocumentBridge bridge =
             new DocumentBridge(SubscribeOnlyStore.this, id, body.getArray(Key.SNAPSHOT),
                                body.getArray(Key.COLLABORATORS), opt_error);
-        onLoaded(id, opt_initializer, body.getNumber(Key.VERSION), bridge);
-        if (body.getNumber(Key.VERSION) == 0) {
+        long version = Versions.get(body, Key.VERSION);
+        onLoaded(id, opt_initializer, version, bridge);
+        if (version == 0) {
           bridge.createRoot();
           if (opt_initializer != null) {
             Platform.scheduler().handle(opt_initializer, bridge.getDocument().getModel());
@@ -66,7 +70,7 @@ public class SubscribeOnlyStore extends MemoryStore {
     });
   }
 
-  protected void onLoaded(final String id, Handler<Model> opt_initializer, double version,
+  protected void onLoaded(final String id, Handler<Model> opt_initializer, long version,
       final DocumentBridge bridge) {
     String topic = Constants.Topic.STORE + "/" + id + Constants.Topic.WATCH;
     if (bus instanceof ReliableSubscribeBus) {
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.operation.Transformer;
+import com.goodow.realtime.operation.impl.AbstractComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.AbstractListComponent;
+import com.goodow.realtime.operation.list.ListTarget;
+import com.goodow.realtime.operation.list.string.StringDeleteComponent;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.operation.undo.UndoManager;
+import com.goodow.realtime.operation.util.Pair;
+
+/**
+ * A bounded undo history.
+ *
+ * Each entry holds the operation undoing one undoable operation. Non undoable operations are not
+ * transformed through the stacks as they arrive: they are recorded on the top entry of each stack,
+ * and only transformed into an entry when it reaches the top of its stack and is about to be used.
+ * Users rarely undo, so most remote operations are never transformed at all. {@link #canUndo()} and
+ * {@link #canRedo()} don't transform anything either: an entry which turns out to do nothing once
+ * transformed is only dropped when used, so they may answer true while {@link #undo()} or
+ * {@link #redo()} then returns null. The history is capped by {@link #MAX_ENTRIES} and
+ * {@link #MAX_BYTES}, the oldest entries being dropped first.
+ *
+ * Consecutive insertions or deletions of text at the same place are coalesced into a single entry,
+ * a new entry starting with each new word typed. The operations coalesced are only merged into
+ * their entry once it is used, and the size of each operation is estimated once, so that typing
+ * stays linear in the length of the text typed.
+ */
+final class UndoStack implements UndoManager<CollaborativeOperation> {
+  /* The maximum number of undo levels kept. */
+  static final int MAX_ENTRIES = 100;
+  /* The maximum estimated size of the undo and redo operations kept, in bytes. */
+  static final int MAX_BYTES = 512 * 1024;
+  /* Above this number of recorded remote operations, they are composed into a single one. */
+  static final int MAX_REMOTE_OPS = 64;
+
+  private static class Entry {
+    private CollaborativeOperation op;
+    /*
+     * The operations undoing edits coalesced into this entry after op was built, most recent last.
+     * They apply before op, and are only merged into it when the entry is used.
+     */
+    private JsonArray coalesced; // ArrayList<CollaborativeOperation>
+    int bytes;
+    /*
+     * The remote operations applied after this entry was pushed and before the entry above it, not
+     * yet transformed into op.
+     */
+    JsonArray remoteOps; // ArrayList<CollaborativeOperation>
+
+    Entry(CollaborativeOperation op) {
+      this.op = op;
+      bytes = sizeOf(op);
+    }
+
+    /**
+     * Extends this entry with the operation undoing a later edit, which then applies first.
+     *
+     * @return the estimated size of the operation.
+     */
+    int coalesce(CollaborativeOperation inverse) {
+      if (coalesced == null) {
+        coalesced = Json.createArray();
+      }
+      coalesced.push(inverse);
+      int size = sizeOf(inverse);
+      bytes += size;
+      return size;
+    }
+
+    CollaborativeOperation op() {
+      if (coalesced != null) {
+        JsonArray components = Json.createArray();
+        for (int i = coalesced.length() - 1; i >= 0; i--) {
+          append(components, coalesced.<CollaborativeOperation> get(i).components);
+        }
+        append(components, op.components);
+        CollaborativeOperation last = coalesced.get(coalesced.length() - 1);
+        op = new CollaborativeOperation(last.userId, last.sessionId, components);
+        coalesced = null;
+      }
+      return op;
+    }
+
+    void setOp(CollaborativeOperation op) {
+      this.op = op;
+      coalesced = null;
+    }
+  }
+
+  /**
+   * Captures the position of the string edit made by a component.
+   */
+  private static class StringEdit implements ListTarget<String> {
+    int index;
+    int length;
+    String text;
+
+    @Override
+    public void delete(int startIndex, int length) {
+      index = startIndex;
+      this.length = length;
+      text = null;
+    }
+
+    @Override
+    public void insert(int startIndex, String values) {
+      index = startIndex;
+      length = values.length();
+      text = values;
+    }
+
+    @Override
+    public void replace(int startIndex, String values) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final Transformer<CollaborativeOperation> transformer = new CollaborativeTransformer();
+  private final JsonArray undoStack = Json.createArray(); // ArrayList<Entry>, oldest first
+  private final JsonArray redoStack = Json.createArray(); // ArrayList<Entry>, oldest first
+  private int bytes;
+  /* Whether the next undoable operation starts a new entry. */
+  private boolean checkpointed = true;
+  /* The string the top undo entry is typing into, or null if it can't be extended. */
+  private String typingId;
+  private boolean typingInsert;
+  /* The end of the text inserted, or the start of the text deleted, by the top undo entry. */
+  private int typingIndex;
+  private boolean typingAtWordEnd;
+  private final StringEdit edit = new StringEdit();
+
+  @Override
+  public boolean canRedo() {
+    return redoStack.length() > 0;
+  }
+
+  @Override
+  public boolean canUndo() {
+    return undoStack.length() > 0;
+  }
+
+  @Override
+  public void checkpoint() {
+    checkpointed = true;
+  }
+
+  @Override
+  public void nonUndoableOp(CollaborativeOperation op) {
+    typingId = null;
+    if (undoStack.length() > 0) {
+      addRemoteOp(undoStack.<Entry> get(undoStack.length() - 1), op);
+    }
+    if (redoStack.length() > 0) {
+      addRemoteOp(redoStack.<Entry> get(redoStack.length() - 1), op);
+    }
+  }
+
+  @Override
+  public CollaborativeOperation redo() {
+    return move(redoStack, undoStack);
+  }
+
+  @Override
+  public CollaborativeOperation undo() {
+    return move(undoStack, redoStack);
+  }
+
+  @Override
+  public void undoableOp(CollaborativeOperation op) {
+    for (int i = redoStack.length() - 1; i >= 0; i--) {
+      bytes -= redoStack.<Entry> get(i).bytes;
+    }
+    redoStack.clear();
+    CollaborativeOperation inverse = op.invert();
+    boolean continuesTyping = continuesTyping(op);
+    int length = undoStack.length();
+    Entry top = length > 0 && (!checkpointed || continuesTyping) ? settleTop(undoStack) : null;
+    if (top != null && undoStack.length() == length) {
+      // Undo the new operation first, then the ones already in the entry
+      bytes += top.coalesce(inverse);
+    } else {
+      top = new Entry(inverse);
+      undoStack.push(top);
+      bytes += top.bytes;
+    }
+    checkpointed = false;
+    trim();
+  }
+
+  private void addRemoteOp(Entry entry, CollaborativeOperation op) {
+    if (entry.remoteOps == null) {
+      entry.remoteOps = Json.createArray();
+    }
+    entry.remoteOps.push(op);
+    if (entry.remoteOps.length() >= MAX_REMOTE_OPS) {
+      CollaborativeOperation composed = transformer.compose(entry.remoteOps);
+      entry.remoteOps = Json.createArray().push(composed);
+    }
+  }
+
+  private static void append(JsonArray to, JsonArray components) {
+    for (int i = 0, len = components.length(); i < len; i++) {
+      to.push(components.get(i));
+    }
+  }
+
+  /**
+   * Returns whether the operation continues the text typed or deleted by the top undo entry, and
+   * records where the typing now stands.
+   */
+  @SuppressWarnings("unchecked")
+  private boolean continuesTyping(CollaborativeOperation op) {
+    String previousId = typingId;
+    typingId = null;
+    if (op.components.length() != 1) {
+      return false;
+    }
+    AbstractComponent<?> component = op.components.get(0);
+    boolean isInsert = component.type == StringInsertComponent.TYPE;
+    if (!isInsert && component.type != StringDeleteComponent.TYPE) {
+      return false;
+    }
+    ((AbstractListComponent<String>) component).apply(edit);
+    boolean continues = component.id.equals(previousId) && isInsert == typingInsert;
+    if (continues && isInsert) {
+      continues = edit.index == typingIndex
+          && !(typingAtWordEnd && !Character.isWhitespace(edit.text.charAt(0)));
+    } else if (continues) {
+      // Backspace or forward delete
+      continues = edit.index + edit.length == typingIndex || edit.index == typingIndex;
+    }
+    typingId = component.id;
+    typingInsert = isInsert;
+    typingIndex = isInsert ? edit.index + edit.length : edit.index;
+    typingAtWordEnd =
+        isInsert && Character.isWhitespace(edit.text.charAt(edit.text.length() - 1));
+    edit.text = null;
+    return continues;
+  }
+
+  /**
+   * Pops the top entry of a stack and pushes its inverse onto the other one.
+   *
+   * @return the operation to apply, or null if no entry of the stack does anything anymore.
+   */
+  private CollaborativeOperation move(JsonArray from, JsonArray to) {
+    Entry entry = settleTop(from);
+    if (entry == null) {
+      return null;
+    }
+    from.remove(from.length() - 1);
+    CollaborativeOperation op = entry.op();
+    entry.setOp(op.invert());
+    to.push(entry);
+    typingId = null;
+    checkpointed = true;
+    return op;
+  }
+
+  /**
+   * Transforms the top entry of a stack against the remote operations recorded on it, handing them
+   * down, transformed, to the entry below: that entry applies once the top one has been applied.
+   * Entries which end up doing nothing are dropped.
+   *
+   * @return the top entry, ready to be applied to the current state, or null if the stack is empty.
+   */
+  private Entry settleTop(JsonArray stack) {
+    for (int length = stack.length(); length > 0; length = stack.length()) {
+      Entry top = stack.get(length - 1);
+      if (top.remoteOps == null) {
+        return top;
+      }
+      CollaborativeOperation remoteOp = top.remoteOps.length() == 1 ? top.remoteOps
+          .<CollaborativeOperation> get(0) : transformer.compose(top.remoteOps);
+      top.remoteOps = null;
+      Pair<CollaborativeOperation, CollaborativeOperation> pair =
+          transformer.transform(top.op(), remoteOp);
+      if (length > 1) {
+        addRemoteOp(stack.<Entry> get(length - 2), pair.second);
+      }
+      if (pair.first.components.length() > 0) {
+        top.setOp(pair.first);
+        return top;
+      }
+      bytes -= top.bytes;
+      stack.remove(length - 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return the estimated size of an operation, the sum of the sizes of its components, each
+   *         estimated once.
+   */
+  private static int sizeOf(CollaborativeOperation op) {
+    int size = 0;
+    for (int i = 0, len = op.components.length(); i < len; i++) {
+      // The serialized component and its separator
+      size += JsonSerializer.sizeOf(op.components.<AbstractComponent<?>> get(i).toJson()) + 1;
+    }
+    return size;
+  }
+
+  private void trim() {
+    while (undoStack.length() > MAX_ENTRIES || (bytes > MAX_BYTES && undoStack.length() > 1)) {
+      Entry oldest = undoStack.remove(0);
+      bytes -= oldest.bytes;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.json.impl.Json;
+
+import java.util.Iterator;
+
+/**
+ * Writes a JSON reply as a chunked response. The elements of the arrays it holds, such as the
+ * components of a snapshot or a range of ops, are serialized one at a time, and written out in
+ * chunks of about {@link #CHUNK_SIZE} characters: a large document is never encoded into a single
+ * string. Serializing pauses while the response's write queue is full.
+ */
+class ChunkedJsonWriter implements Handler<Void> {
+  /* The number of characters serialized before being written out as a chunk. */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final HttpServerResponse resp;
+  private final StringBuilder chunk = new StringBuilder();
+  /* The object being written, or null if writing a top level array. */
+  private JsonObject object;
+  private Iterator<String> fieldNames;
+  /* The elements left of the array being written, or null if writing the fields of object. */
+  private Iterator<Object> elements;
+  private boolean isFirst = true;
+  private boolean isDone;
+
+  ChunkedJsonWriter(HttpServerResponse resp) {
+    this.resp = resp;
+  }
+
+  /**
+   * Drains the serialized elements into the response, once its write queue has room again.
+   */
+  @Override
+  public void handle(Void ignore) {
+    pump();
+  }
+
+  public void write(JsonArray array) {
+    chunk.append('[');
+    elements = array.iterator();
+    start();
+  }
+
+  public void write(JsonObject object) {
+    chunk.append('{');
+    this.object = object;
+    fieldNames = object.getFieldNames().iterator();
+    start();
+  }
+
+  private String encode(Object value) {
+    if (value instanceof JsonObject) {
+      return ((JsonObject) value).encode();
+    } else if (value instanceof JsonArray) {
+      return ((JsonArray) value).encode();
+    }
+    return Json.encode(value);
+  }
+
+  private void flush() {
+    if (chunk.length() > 0) {
+      resp.write(chunk.toString());
+      chunk.setLength(0);
+    }
+  }
+
+  /**
+   * Serializes the next array element or object field into the chunk.
+   */
+  private void next() {
+    if (elements != null) {
+      if (elements.hasNext()) {
+        separate();
+        chunk.append(encode(elements.next()));
+        return;
+      }
+      chunk.append(']');
+      elements = null;
+      if (object == null) {
+        isDone = true;
+        return;
+      }
+      // The next field follows the array, even an empty one
+      isFirst = false;
+    }
+    if (!fieldNames.hasNext()) {
+      chunk.append('}');
+      isDone = true;
+      return;
+    }
+    separate();
+    String name = fieldNames.next();
+    chunk.append(Json.encode(name)).append(':');
+    Object value = object.getField(name);
+    if (value instanceof JsonArray) {
+      // Streamed element by element
+      chunk.append('[');
+      elements = ((JsonArray) value).iterator();
+      isFirst = true;
+    } else {
+      chunk.append(encode(value));
+    }
+  }
+
+  private void pump() {
+    while (!isDone) {
+      if (resp.writeQueueFull()) {
+        resp.drainHandler(this);
+        return;
+      }
+      next();
+      if (chunk.length() >= CHUNK_SIZE) {
+        flush();
+      }
+    }
+    flush();
+    resp.end();
+  }
+
+  private void separate() {
+    if (!isFirst) {
+      chunk.append(',');
+    }
+    isFirst = false;
+  }
+
+  private void start() {
+    resp.setChunked(true);
+    pump();
+  }
+}
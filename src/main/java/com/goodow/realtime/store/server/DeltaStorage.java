@@ -25,20 +25,35 @@ import org.vertx.java.core.json.JsonObject;
 public interface DeltaStorage {
 
   String ROOT = "root";
+  /* {referenceId: sessionId}, the sessions which created the live index references. */
+  String REFERENCE_SESSIONS = "sessions";
+  /* The deflated snapshot, stored instead of snapshot, see SnapshotCompression. */
+  String COMPRESSED_SNAPSHOT = "zsnapshot";
 
   void start(CountingCompletionHandler<Void> countDownLatch);
 
   /**
    * Get the named document from the storage.
    *
-   * @param callback called with {v:, snapshot:[], root:{}} or null if the document has never been
-   *                 created in the storage.
+   * @param callback called with {v:, snapshot:[], root:{}, sessions:{}} or null if the document
+   *                 has never been created in the storage. root may be left out, and is then
+   *                 derived from snapshot when needed. snapshot may be replaced by zsnapshot, read with
+   *                 SnapshotCompression.snapshot.
    */
   void getSnapshot(String docType, String docId, Long version,
                    AsyncResultHandler<JsonObject> callback);
 
   /**
-   * @param snapshotData {v:, snapshot:[], root:{}}
+   * @return true if the storage keeps the root written along with the snapshot, e.g. to index it.
+   *         Otherwise it is left out of the snapshotData written, since deriving it costs a walk
+   *         of the whole document.
+   */
+  boolean keepsRoot();
+
+  /**
+   * @param snapshotData {v:, snapshot:[], root:{}, sessions:{}}. sessions is optional and must be
+   *                     given back as is by {@link #getSnapshot}. root is only there if
+   *                     {@link #keepsRoot}. The storage may modify snapshotData.
    */
   void writeSnapshot(String docType, String docId, JsonObject snapshotData,
                      AsyncResultHandler<Void> callback);
@@ -86,5 +101,5 @@ public interface DeltaStorage {
   void atomicSubmit(String docType, String docId, JsonObject opData,
                     AsyncResultHandler<Void> callback);
 
-  void postSubmit(String docType, String docId, JsonObject opData, JsonObject snapshot);
+  void postSubmit(String docType, String docId, JsonObject opData);
 }
@@ -46,25 +46,29 @@ public class RestVerticle extends BusModBase {
     Handler<HttpServerRequest> handler = new Handler<HttpServerRequest>() {
       @Override
       public void handle(final HttpServerRequest req) {
-        JsonObject message = parseRequest(req);
-        eb.sendWithTimeout(address, message, StoreModule.REPLY_TIMEOUT,
-            new Handler<AsyncResult<Message<Object>>>() {
+        final JsonObject message = parseRequest(req);
+        final String ifNoneMatch = req.headers().get("If-None-Match");
+        if (!"GET".equals(req.method()) || ifNoneMatch == null) {
+          fetch(req, message);
+          return;
+        }
+        // Compare against the current version, without loading the snapshot. This also tells
+        // whether the document, and the version asked for, exist at all
+        JsonObject head = new JsonObject().putString("action", "head")
+            .putString(Key.ID, message.getString(Key.ID));
+        eb.sendWithTimeout(address, head, StoreModule.REPLY_TIMEOUT,
+            new Handler<AsyncResult<Message<Long>>>() {
               @Override
-              public void handle(AsyncResult<Message<Object>> ar) {
-                if (ar.failed()) {
-                  req.response().setStatusCode(500).setStatusMessage(ar.cause().getMessage()).end();
-                  return;
-                }
-                Object body = ar.result().body();
-                if (body == null) {
-                  req.response().setStatusCode(404).end();
-                  return;
-                }
-                if ("HEAD".equals(req.method())) {
-                  req.response().end(body.toString());
+              public void handle(AsyncResult<Message<Long>> ar) {
+                Long current = ar.succeeded() ? ar.result().body() : null;
+                // A given version of a document never changes
+                Long version = message.containsField(Key.VERSION)
+                    ? message.getLong(Key.VERSION) : current;
+                if (current != null && version > 0 && version <= current
+                    && ifNoneMatch.equals(etag(version, message))) {
+                  notModified(req, ifNoneMatch);
                 } else {
-                  req.response().headers().set("Content-Type", "application/json");
-                  req.response().end(((JsonObject) body).encode());
+                  fetch(req, message);
                 }
               }
             });
@@ -125,7 +129,7 @@ public class RestVerticle extends BusModBase {
                   return;
                 }
                 req.response().headers().set("Content-Type", "application/json");
-                req.response().end(ar.result().body().encode());
+                new ChunkedJsonWriter(req.response()).write(ar.result().body());
               }
             });
       }
@@ -144,6 +148,53 @@ public class RestVerticle extends BusModBase {
         });
   }
 
+  /**
+   * The entity tag of a document at a version: the version, and the fields it is rendered with.
+   * Any fields but the root or the snapshot alone render both, as the store does.
+   */
+  private String etag(long version, JsonObject message) {
+    String fields = message.getString(Key.FIELDS);
+    boolean oneField = DeltaStorage.ROOT.equals(fields) || Key.SNAPSHOT.equals(fields);
+    return "\"" + version + (oneField ? "-" + fields : "") + "\"";
+  }
+
+  private void fetch(final HttpServerRequest req, final JsonObject message) {
+    eb.sendWithTimeout(address, message, StoreModule.REPLY_TIMEOUT,
+        new Handler<AsyncResult<Message<Object>>>() {
+          @Override
+          public void handle(AsyncResult<Message<Object>> ar) {
+            if (ar.failed()) {
+              req.response().setStatusCode(500).setStatusMessage(ar.cause().getMessage()).end();
+              return;
+            }
+            Object body = ar.result().body();
+            if (body == null) {
+              req.response().setStatusCode(404).end();
+              return;
+            }
+            if ("HEAD".equals(req.method())) {
+              req.response().end(body.toString());
+            } else {
+              JsonObject snapshotData = (JsonObject) body;
+              // The collaborators change without a new version, so they aren't part of the
+              // representation the entity tag stands for
+              snapshotData.removeField(Key.COLLABORATORS);
+              req.response().headers().set("Content-Type", "application/json");
+              if (snapshotData.containsField(Key.VERSION)) {
+                req.response().headers().set("ETag",
+                    etag(snapshotData.getLong(Key.VERSION), message));
+              }
+              new ChunkedJsonWriter(req.response()).write(snapshotData);
+            }
+          }
+        });
+  }
+
+  private void notModified(HttpServerRequest req, String etag) {
+    req.response().setStatusCode(304).headers().set("ETag", etag);
+    req.response().end();
+  }
+
   private JsonObject parseRequest(final HttpServerRequest req) {
     String id = req.params().get("docType") + "/" + req.params().get("docId");
     JsonObject message = new JsonObject().putString("action", req.method().toLowerCase())
@@ -151,6 +202,9 @@ public class RestVerticle extends BusModBase {
     if (req.params().contains(Key.VERSION)) {
       message.putNumber(Key.VERSION, Long.valueOf(req.params().get(Key.VERSION)));
     }
+    if (req.params().contains(Key.FIELDS)) {
+      message.putString(Key.FIELDS, req.params().get(Key.FIELDS));
+    }
     return message;
   }
 }
\ No newline at end of file
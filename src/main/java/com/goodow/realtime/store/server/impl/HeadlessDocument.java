@@ -0,0 +1,628 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.operation.OperationSink;
+import com.goodow.realtime.operation.create.CreateComponent;
+import com.goodow.realtime.operation.cursor.ReferenceShiftedComponent;
+import com.goodow.realtime.operation.impl.AbstractComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.AbstractListComponent;
+import com.goodow.realtime.operation.list.ListTarget;
+import com.goodow.realtime.operation.list.json.JsonDeleteComponent;
+import com.goodow.realtime.operation.list.json.JsonInsertComponent;
+import com.goodow.realtime.operation.list.string.StringDeleteComponent;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.operation.map.MapTarget;
+import com.goodow.realtime.operation.map.json.JsonMapComponent;
+import com.goodow.realtime.store.impl.JsonSerializer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A server side document which applies {@link CollaborativeOperation}s directly to plain data
+ * structures.
+ *
+ * Unlike {@link com.goodow.realtime.store.impl.DocumentBridge}, it has no store, bus,
+ * collaborators, events or undo stack: it only knows how to consume operations and serialize the
+ * result, which is all the server needs to validate submitted operations and build snapshots.
+ */
+public class HeadlessDocument implements OperationSink<CollaborativeOperation> {
+  /* The user and session id of the operations the server submits on its own. */
+  public static final String SERVER_ID = "_server";
+  private static final String ROOT_ID = "root";
+
+  private abstract class Node {
+    final String id;
+    double bytesUsed;
+
+    Node(String id) {
+      this.id = id;
+      // The create component [type,"<id>",subType] and its separator
+      updateBytesUsed(JsonSerializer.sizeOf(id) + 6);
+    }
+
+    void updateBytesUsed(double delta) {
+      bytesUsed += delta;
+      HeadlessDocument.this.bytesUsed += delta;
+    }
+
+    abstract void consume(AbstractComponent<?> component);
+
+    abstract Object toJson();
+
+    /**
+     * Appends the components needed to rebuild this node, except the create component.
+     */
+    abstract void toInitialization(JsonArray components);
+  }
+
+  private class MapNode extends Node implements MapTarget<JsonArray> {
+    // LinkedHashMap<String, serialized value>
+    final Map<String, JsonArray> values = new LinkedHashMap<String, JsonArray>();
+
+    MapNode(String id) {
+      super(id);
+    }
+
+    @Override
+    public void set(String key, JsonArray newValue) {
+      checkReferenceTarget(newValue);
+      JsonArray oldValue = newValue == null ? values.remove(key) : values.put(key, newValue);
+      if (oldValue != null) {
+        updateBytesUsed(-sizeOfEntry(key, oldValue));
+      }
+      if (newValue != null) {
+        updateBytesUsed(sizeOfEntry(key, newValue));
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void consume(AbstractComponent<?> component) {
+      ((JsonMapComponent) component).apply(this);
+    }
+
+    @Override
+    JsonObject toJson() {
+      JsonObject json = Json.createObject();
+      for (Map.Entry<String, JsonArray> entry : values.entrySet()) {
+        json.set(entry.getKey(), valueToJson(entry.getValue()));
+      }
+      return json;
+    }
+
+    @Override
+    void toInitialization(JsonArray components) {
+      for (Map.Entry<String, JsonArray> entry : values.entrySet()) {
+        components.push(new JsonMapComponent(id, entry.getKey(), null, entry.getValue()).toJson());
+      }
+    }
+  }
+
+  private class ListNode extends Node implements ListTarget<JsonArray> {
+    // ArrayList<serialized value>
+    final List<JsonArray> values = new ArrayList<JsonArray>();
+
+    ListNode(String id) {
+      super(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void consume(AbstractComponent<?> component) {
+      ((AbstractListComponent<JsonArray>) component).apply(this);
+    }
+
+    @Override
+    public void delete(int startIndex, int length) {
+      assert startIndex + length <= values.size();
+      List<JsonArray> toDelete = values.subList(startIndex, startIndex + length);
+      for (JsonArray value : toDelete) {
+        updateBytesUsed(-JsonSerializer.sizeOf(value) - 1);
+      }
+      toDelete.clear();
+    }
+
+    @Override
+    public void insert(int startIndex, JsonArray vals) {
+      assert startIndex <= values.size();
+      int length = vals.length();
+      List<JsonArray> toInsert = new ArrayList<JsonArray>(length);
+      for (int i = 0; i < length; i++) {
+        JsonArray value = vals.getArray(i);
+        checkReferenceTarget(value);
+        toInsert.add(value);
+        updateBytesUsed(JsonSerializer.sizeOf(value) + 1);
+      }
+      values.addAll(startIndex, toInsert);
+    }
+
+    @Override
+    public void replace(int startIndex, JsonArray vals) {
+      int length = vals.length();
+      assert startIndex + length <= values.size();
+      for (int i = 0; i < length; i++) {
+        JsonArray value = vals.getArray(i);
+        checkReferenceTarget(value);
+        JsonArray oldValue = values.set(startIndex + i, value);
+        updateBytesUsed(JsonSerializer.sizeOf(value) - JsonSerializer.sizeOf(oldValue));
+      }
+    }
+
+    @Override
+    JsonArray toJson() {
+      JsonArray json = Json.createArray();
+      for (JsonArray value : values) {
+        json.push(valueToJson(value));
+      }
+      return json;
+    }
+
+    @Override
+    void toInitialization(JsonArray components) {
+      if (values.isEmpty()) {
+        return;
+      }
+      JsonArray vals = Json.createArray();
+      for (JsonArray value : values) {
+        vals.push(value);
+      }
+      components.push(new JsonInsertComponent(id, 0, vals).toJson());
+    }
+  }
+
+  private class StringNode extends Node implements ListTarget<String> {
+    final StringBuilder text = new StringBuilder();
+
+    StringNode(String id) {
+      super(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void consume(AbstractComponent<?> component) {
+      ((AbstractListComponent<String>) component).apply(this);
+    }
+
+    @Override
+    public void delete(int startIndex, int length) {
+      assert startIndex + length <= text.length();
+      text.delete(startIndex, startIndex + length);
+      updateBytesUsed(-length);
+    }
+
+    @Override
+    public void insert(int startIndex, String values) {
+      assert startIndex <= text.length();
+      text.insert(startIndex, values);
+      updateBytesUsed(values.length());
+    }
+
+    @Override
+    public void replace(int startIndex, String values) {
+      assert startIndex + values.length() <= text.length();
+      text.replace(startIndex, startIndex + values.length(), values);
+    }
+
+    @Override
+    String toJson() {
+      return text.toString();
+    }
+
+    @Override
+    void toInitialization(JsonArray components) {
+      if (text.length() != 0) {
+        components.push(new StringInsertComponent(id, 0, text.toString()).toJson());
+      }
+    }
+  }
+
+  private class IndexReferenceNode extends Node {
+    String referencedObjectId;
+    int index = -1;
+    boolean canBeDeleted;
+    /* The session which created this reference, if known. */
+    String sessionId;
+
+    IndexReferenceNode(String id) {
+      super(id);
+    }
+
+    @Override
+    void consume(AbstractComponent<?> component) {
+      ReferenceShiftedComponent shifted = (ReferenceShiftedComponent) component;
+      if (shifted.newIndex != -1 && !objects.containsKey(shifted.referencedObjectId)) {
+        throw new IllegalStateException("Object " + shifted.referencedObjectId + " doesn't exist");
+      }
+      if (index != -1) {
+        references.get(referencedObjectId).remove(this);
+      }
+      referencedObjectId = shifted.referencedObjectId;
+      index = shifted.newIndex;
+      canBeDeleted = shifted.canBeDeleted;
+      if (index != -1) {
+        List<IndexReferenceNode> refs = references.get(referencedObjectId);
+        if (refs == null) {
+          refs = new ArrayList<IndexReferenceNode>();
+          references.put(referencedObjectId, refs);
+        }
+        refs.add(this);
+      }
+    }
+
+    @Override
+    JsonObject toJson() {
+      return Json.createObject().set("id", id).set("referencedObjectId", referencedObjectId).set(
+          "index", index).set("canBeDeleted", canBeDeleted);
+    }
+
+    @Override
+    void toInitialization(JsonArray components) {
+      if (referencedObjectId != null) {
+        components.push(new ReferenceShiftedComponent(id, referencedObjectId, index, canBeDeleted,
+            index).toJson());
+      }
+    }
+  }
+
+  // LinkedHashMap<objectId, Node>, in creation order
+  private final Map<String, Node> objects = new LinkedHashMap<String, Node>();
+  // HashMap<referencedObjectId, live index references into it>
+  private final Map<String, List<IndexReferenceNode>> references =
+      new HashMap<String, List<IndexReferenceNode>>();
+  /* An estimate of the number of bytes used by data stored in the document. */
+  private double bytesUsed;
+
+  /**
+   * @param components the snapshot to start from, as produced by {@link #toSnapshot()}, or
+   *          {@code null} for an empty document.
+   */
+  public HeadlessDocument(JsonArray components) {
+    if (components != null && components.length() > 0) {
+      consume(new CollaborativeTransformer().createOperation(Json.createObject().set("op",
+          components)));
+    }
+  }
+
+  @Override
+  public void consume(CollaborativeOperation operation) {
+    JsonArray components = operation.components;
+    for (int i = 0, len = components.length(); i < len; i++) {
+      AbstractComponent<?> component = components.get(i);
+      if (component.type != CreateComponent.TYPE) {
+        Node node = objects.get(component.id);
+        if (node == null && component.type == ReferenceShiftedComponent.TYPE) {
+          // The reference was disposed and dropped from the snapshot
+          continue;
+        }
+        if (node == null) {
+          throw new IllegalStateException("Object " + component.id + " doesn't exist");
+        }
+        if (node instanceof IndexReferenceNode
+            && ((IndexReferenceNode) node).referencedObjectId == null) {
+          // The first shift of a reference is part of its creation
+          ((IndexReferenceNode) node).sessionId = operation.sessionId;
+        }
+        node.consume(component);
+        if (references.containsKey(node.id) && isInsertOrDelete(component)) {
+          shiftReferences((AbstractListComponent<?>) component);
+        }
+        continue;
+      }
+      Node node;
+      switch (((CreateComponent) component).subType) {
+        case CreateComponent.MAP:
+          node = new MapNode(component.id);
+          break;
+        case CreateComponent.LIST:
+          node = new ListNode(component.id);
+          break;
+        case CreateComponent.STRING:
+          node = new StringNode(component.id);
+          break;
+        case CreateComponent.INDEX_REFERENCE:
+          node = new IndexReferenceNode(component.id);
+          break;
+        default:
+          throw new RuntimeException("Shouldn't reach here!");
+      }
+      objects.put(node.id, node);
+    }
+  }
+
+  /**
+   * @return An estimate of the number of bytes used by data stored in the document.
+   */
+  public double bytesUsed() {
+    return bytesUsed;
+  }
+
+  /**
+   * @return An estimate of the number of bytes used by data stored in the given object, or -1 if
+   *         there is no such object.
+   */
+  public double bytesUsed(String objectId) {
+    Node node = objects.get(objectId);
+    return node == null ? -1 : node.bytesUsed;
+  }
+
+  /**
+   * Drops the objects which can't be reached from the root any more. An object is reachable if it
+   * is the root, if a reachable map or list holds a reference to it, if a reachable index reference
+   * points into it, or if it is a live index reference into a reachable object.
+   *
+   * A client still holding a dropped object, through its undo stack or a value kept outside the
+   * model, would have its next operation on it rejected: this must only be called once no session
+   * has the document open.
+   *
+   * @return {objects:, bytes:} the number of objects dropped and an estimate of the bytes
+   *         reclaimed.
+   */
+  public JsonObject collectGarbage() {
+    Set<String> reachable = new HashSet<String>();
+    List<Node> pending = new ArrayList<Node>();
+    Node root = objects.get(ROOT_ID);
+    if (root != null) {
+      reachable.add(ROOT_ID);
+      pending.add(root);
+    }
+    while (!pending.isEmpty()) {
+      Node node = pending.remove(pending.size() - 1);
+      if (node instanceof IndexReferenceNode) {
+        Node target = objects.get(((IndexReferenceNode) node).referencedObjectId);
+        if (target != null && reachable.add(target.id)) {
+          pending.add(target);
+        }
+        continue;
+      }
+      Iterable<JsonArray> values = valuesOf(node);
+      if (values == null) {
+        continue;
+      }
+      for (JsonArray value : values) {
+        if (value == null || value.getNumber(0) != JsonSerializer.REFERENCE_TYPE) {
+          continue;
+        }
+        Node child = objects.get(value.getString(1));
+        if (child != null && reachable.add(child.id)) {
+          pending.add(child);
+        }
+      }
+    }
+    for (Node node : objects.values()) {
+      if (node instanceof IndexReferenceNode && !isDisposedOrDangling((IndexReferenceNode) node)
+          && reachable.contains(((IndexReferenceNode) node).referencedObjectId)) {
+        reachable.add(node.id);
+      }
+    }
+
+    int collected = 0;
+    double bytesCollected = 0;
+    for (Iterator<Node> it = objects.values().iterator(); it.hasNext();) {
+      Node node = it.next();
+      if (reachable.contains(node.id)) {
+        continue;
+      }
+      it.remove();
+      // The live references into it are unreachable too, and dropped along with it
+      references.remove(node.id);
+      collected++;
+      bytesCollected += node.bytesUsed;
+      bytesUsed -= node.bytesUsed;
+    }
+    return Json.createObject().set("objects", collected).set("bytes", bytesCollected);
+  }
+
+  /**
+   * Builds the operation disposing the live index references created by a session, once it has
+   * left the document. It is submitted like any other operation, under {@link #SERVER_ID}, so that
+   * every replica drops the references at the same version.
+   *
+   * @return the operation, or null if the session has no live reference.
+   */
+  public CollaborativeOperation disposeReferences(String sessionId) {
+    JsonArray components = Json.createArray();
+    for (Node node : objects.values()) {
+      if (!(node instanceof IndexReferenceNode)) {
+        continue;
+      }
+      IndexReferenceNode ref = (IndexReferenceNode) node;
+      if (sessionId.equals(ref.sessionId) && !isDisposedOrDangling(ref)) {
+        components.push(new ReferenceShiftedComponent(ref.id, ref.referencedObjectId, -1,
+            ref.canBeDeleted, ref.index));
+      }
+    }
+    return components.length() == 0 ? null
+        : new CollaborativeOperation(SERVER_ID, SERVER_ID, components);
+  }
+
+  /**
+   * @return the sessions which created the live index references, by reference id. It is saved
+   *         along with the snapshot, which doesn't hold it, and restored with
+   *         {@link #setReferenceSession}.
+   */
+  public Map<String, String> referenceSessions() {
+    Map<String, String> sessions = new HashMap<String, String>();
+    for (Node node : objects.values()) {
+      if (node instanceof IndexReferenceNode && ((IndexReferenceNode) node).sessionId != null
+          && !isDisposedOrDangling((IndexReferenceNode) node)) {
+        sessions.put(node.id, ((IndexReferenceNode) node).sessionId);
+      }
+    }
+    return sessions;
+  }
+
+  public void setReferenceSession(String referenceId, String sessionId) {
+    Node node = objects.get(referenceId);
+    if (node instanceof IndexReferenceNode) {
+      ((IndexReferenceNode) node).sessionId = sessionId;
+    }
+  }
+
+  public JsonObject toJson() {
+    Node root = objects.get(ROOT_ID);
+    return root == null ? Json.createObject() : (JsonObject) root.toJson();
+  }
+
+  /**
+   * Serializes the document the same way as
+   * {@link com.goodow.realtime.store.impl.DocumentBridge#toSnapshot()}: all the create components
+   * first, followed by the components initializing each object. Orphan index references are left
+   * out.
+   */
+  public JsonArray toSnapshot() {
+    List<Node> nodes = new ArrayList<Node>(objects.size());
+    Set<String> referred = null;
+    for (Node node : objects.values()) {
+      if (!(node instanceof IndexReferenceNode)
+          || !isDisposedOrDangling((IndexReferenceNode) node)) {
+        nodes.add(node);
+        continue;
+      }
+      if (referred == null) {
+        referred = referredIds();
+      }
+      if (referred.contains(node.id)) {
+        nodes.add(node);
+      }
+    }
+    JsonArray components = Json.createArray();
+    for (Node node : nodes) {
+      components.push(new CreateComponent(node.id, createType(node)).toJson());
+    }
+    for (Node node : nodes) {
+      node.toInitialization(components);
+    }
+    return components;
+  }
+
+  @Override
+  public String toString() {
+    return toJson().toJsonString();
+  }
+
+  /**
+   * Rejects a serialized value referring to an object which doesn't exist, so that a dangling
+   * reference can never be stored.
+   */
+  private void checkReferenceTarget(JsonArray value) {
+    if (value != null && value.getNumber(0) == JsonSerializer.REFERENCE_TYPE
+        && !objects.containsKey(value.getString(1))) {
+      throw new IllegalStateException("Object " + value.getString(1) + " doesn't exist");
+    }
+  }
+
+  private int createType(Node node) {
+    if (node instanceof MapNode) {
+      return CreateComponent.MAP;
+    } else if (node instanceof ListNode) {
+      return CreateComponent.LIST;
+    } else if (node instanceof StringNode) {
+      return CreateComponent.STRING;
+    }
+    return CreateComponent.INDEX_REFERENCE;
+  }
+
+  private boolean isDisposedOrDangling(IndexReferenceNode node) {
+    return node.index == -1 || !objects.containsKey(node.referencedObjectId);
+  }
+
+  private static boolean isInsertOrDelete(AbstractComponent<?> component) {
+    switch (component.type) {
+      case JsonInsertComponent.TYPE:
+      case JsonDeleteComponent.TYPE:
+      case StringInsertComponent.TYPE:
+      case StringDeleteComponent.TYPE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return the ids of all the objects referred to by a map or list value.
+   */
+  private Set<String> referredIds() {
+    Set<String> ids = new HashSet<String>();
+    for (Node node : objects.values()) {
+      Iterable<JsonArray> values = valuesOf(node);
+      if (values == null) {
+        continue;
+      }
+      for (JsonArray value : values) {
+        if (value != null && value.getNumber(0) == JsonSerializer.REFERENCE_TYPE) {
+          ids.add(value.getString(1));
+        }
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Shifts the index references into a list or string the same way the clients do, so that the
+   * snapshot holds their current indexes.
+   */
+  private void shiftReferences(AbstractListComponent<?> component) {
+    List<IndexReferenceNode> refs = references.get(component.id);
+    for (Iterator<IndexReferenceNode> it = refs.iterator(); it.hasNext();) {
+      IndexReferenceNode ref = it.next();
+      ref.index = component.transformIndexReference(ref.index, true, ref.canBeDeleted);
+      if (ref.index == -1) {
+        it.remove();
+      }
+    }
+    if (refs.isEmpty()) {
+      references.remove(component.id);
+    }
+  }
+
+  private Object valueToJson(JsonArray serialized) {
+    if (serialized == null) {
+      return null;
+    }
+    if (serialized.getNumber(0) == JsonSerializer.REFERENCE_TYPE) {
+      Node node = objects.get(serialized.getString(1));
+      if (node == null) {
+        throw new IllegalStateException("Object " + serialized.getString(1) + " doesn't exist");
+      }
+      return node.toJson();
+    }
+    return serialized.get(1);
+  }
+
+  /**
+   * @return the serialized values held by a map or a list, or null for other nodes.
+   */
+  private Iterable<JsonArray> valuesOf(Node node) {
+    return node instanceof MapNode ? ((MapNode) node).values.values()
+        : node instanceof ListNode ? ((ListNode) node).values : null;
+  }
+
+  private static int sizeOfEntry(String key, JsonArray value) {
+    // "<key>":<value> and its separator
+    return JsonSerializer.sizeOf(key) + JsonSerializer.sizeOf(value) + 2;
+  }
+}
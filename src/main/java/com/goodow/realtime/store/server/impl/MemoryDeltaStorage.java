@@ -21,7 +21,6 @@ import com.goodow.realtime.operation.Transformer;
 import com.goodow.realtime.operation.impl.CollaborativeOperation;
 import com.goodow.realtime.store.channel.Constants.Key;
 import com.goodow.realtime.store.channel.Constants.Topic;
-import com.goodow.realtime.store.impl.DocumentBridge;
 import com.goodow.realtime.store.server.DeltaStorage;
 
 import org.vertx.java.core.AsyncResult;
@@ -97,7 +96,9 @@ public class MemoryDeltaStorage implements DeltaStorage {
     if (version == null) {
       JsonObject snapshotData = snapshotDatas.containsKey(docType)
                                 ? snapshotDatas.get(docType).get(docId) : null;
-      callback.handle(new DefaultFutureResult<JsonObject>(snapshotData));
+      // Callers may modify it, or inflate its snapshot
+      callback.handle(new DefaultFutureResult<JsonObject>(
+          snapshotData == null ? null : snapshotData.copy()));
       return;
     }
 
@@ -110,7 +111,7 @@ public class MemoryDeltaStorage implements DeltaStorage {
           return;
         }
         JsonObject snapshotData = new JsonObject().putNumber(Key.VERSION, 0);
-        DocumentBridge snapshot = OperationProcessor.createSnapshot(docType, docId, snapshotData);
+        HeadlessDocument snapshot = OperationProcessor.createSnapshot(docType, docId, snapshotData);
         JsonArray ops = ar.result().getArray(Key.OPS);
         Long opVersion = null;
         for (Object op : ops) {
@@ -125,14 +126,19 @@ public class MemoryDeltaStorage implements DeltaStorage {
             return;
           }
         }
-        JsonObject root = new JsonObject(((JreJsonObject) snapshot.toJson()).toNative());
-        snapshotData.putNumber(Key.VERSION, opVersion + 1).putObject(DeltaStorage.ROOT, root).
-           putArray(Key.SNAPSHOT, new JsonArray(((JreJsonArray) snapshot.toSnapshot()).toNative()));
+        snapshotData.putNumber(Key.VERSION, opVersion + 1).putArray(Key.SNAPSHOT,
+            new JsonArray(((JreJsonArray) snapshot.toSnapshot()).toNative()));
         callback.handle(new DefaultFutureResult<JsonObject>(snapshotData));
       }
     });
   }
 
+  @Override
+  public boolean keepsRoot() {
+    // The root is only needed by the REST API, which derives it from the snapshot on demand
+    return false;
+  }
+
   @Override
   public void writeSnapshot(String docType, String docId, JsonObject snapshotData,
                             AsyncResultHandler<Void> callback) {
@@ -141,7 +147,7 @@ public class MemoryDeltaStorage implements DeltaStorage {
       type = new HashMap<String, JsonObject>();
       snapshotDatas.put(docType, type);
     }
-    type.put(docId, snapshotData);
+    type.put(docId, SnapshotCompression.compress(snapshotData));
     callback.handle(new DefaultFutureResult<Void>().setResult(null));
   }
 
@@ -173,7 +179,8 @@ public class MemoryDeltaStorage implements DeltaStorage {
   public void getOps(String docType, String docId, Long from, Long to,
                      AsyncResultHandler<JsonObject> callback) {
     List<JsonObject> opLog = getOpLog(docType, docId);
-    if (to == null) {
+    // The range may go past the end of the oplog, as it does when fetching a bounded delta
+    if (to == null || to > opLog.size()) {
       to = Long.valueOf(opLog.size());
     }
     JsonArray ops = new JsonArray();
@@ -212,7 +219,7 @@ public class MemoryDeltaStorage implements DeltaStorage {
   }
 
   @Override
-  public void postSubmit(String docType, String docId, JsonObject opData, JsonObject snapshot) {
+  public void postSubmit(String docType, String docId, JsonObject opData) {
     eb.publish(MemoryDeltaStorage.getDocTypeChannel(address, docType), opData);
   }
 
@@ -14,40 +14,210 @@
 package com.goodow.realtime.store.server.impl;
 
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import com.goodow.realtime.json.impl.JreJsonArray;
 import com.goodow.realtime.json.impl.JreJsonObject;
 import com.goodow.realtime.operation.Transformer;
 import com.goodow.realtime.operation.impl.CollaborativeOperation;
 import com.goodow.realtime.store.channel.Constants.Key;
-import com.goodow.realtime.store.impl.DocumentBridge;
 import com.goodow.realtime.store.server.DeltaStorage;
 
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
 import org.vertx.java.core.eventbus.ReplyException;
 import org.vertx.java.core.eventbus.ReplyFailure;
 import org.vertx.java.core.impl.DefaultFutureResult;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+@Singleton
 public class OperationProcessor {
+  /**
+   * A chained op waiting for the ops sent before it by its session to be submitted.
+   */
+  private static class ChainWaiter {
+    final long applyAt;
+    /* Set once an op of the session was applied or rejected since the waiter was added. */
+    boolean isNotified;
+    /* Set once one of the ops the chained op is chained to was rejected. */
+    boolean isBroken;
+    long timerId = -1;
+    Handler<Void> handler;
+
+    ChainWaiter(long applyAt) {
+      this.applyAt = applyAt;
+    }
+  }
+
   private static final Logger log  = Logger.getLogger(OperationProcessor.class.getName());
+  /*
+   * A chained op may arrive while the ops sent before it are still being submitted: it waits for
+   * them up to this long, in case they were lost or went to another server, before being rejected.
+   */
+  private static final int CHAIN_TIMEOUT_MS = 5000;
 
   @SuppressWarnings("unchecked")
-  public static DocumentBridge createSnapshot(final String docType, final String docId,
-                                              JsonObject snapshotData) {
-    JreJsonArray snapshot = snapshotData.containsField(Key.SNAPSHOT)
-                            ? new JreJsonArray(snapshotData.getArray(Key.SNAPSHOT).toList()) : null;
-    DocumentBridge bridge = new DocumentBridge(null, docType + "/" + docId, snapshot, null, null);
-    return bridge;
+  public static HeadlessDocument createSnapshot(final String docType, final String docId,
+                                                JsonObject snapshotData) {
+    JsonArray serialized = SnapshotCompression.snapshot(snapshotData);
+    JreJsonArray snapshot = serialized == null ? null : new JreJsonArray(serialized.toList());
+    HeadlessDocument document = new HeadlessDocument(snapshot);
+    JsonObject sessions = snapshotData.getObject(DeltaStorage.REFERENCE_SESSIONS);
+    if (sessions != null) {
+      for (String id : sessions.getFieldNames()) {
+        document.setReferenceSession(id, sessions.getString(id));
+      }
+    }
+    return document;
   }
 
   @Inject private Transformer<CollaborativeOperation> transformer;
   @Inject private DeltaStorage storage;
+  @Inject private Vertx vertx;
+  @Inject private Container container;
+  // HashMap<docType/docId/sessionId, the chained ops waiting for an op of the session>
+  private final Map<String, List<ChainWaiter>> chainWaiters =
+      new HashMap<String, List<ChainWaiter>>();
+
+  /**
+   * Drops the objects of the named docType/docId document which can't be reached from its root any
+   * more, and writes the snapshot left. It must only be called once no session has the document
+   * open, see {@link HeadlessDocument#collectGarbage}.
+   *
+   * @param callback called with {objects:, bytes:}, the number of objects dropped and an
+   *                 estimate of the bytes reclaimed.
+   */
+  public void collectGarbage(final String docType, final String docId,
+                             final AsyncResultHandler<JsonObject> callback) {
+    lazyFetch(docType, docId, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        if (ar.failed()) {
+          callback.handle(ar);
+          return;
+        }
+        final JsonObject snapshotData = ar.result();
+        final long snapshotVersion = snapshotData.getLong(Key.VERSION);
+        storage.getOps(docType, docId, snapshotVersion, null, new AsyncResultHandler<JsonObject>() {
+          @Override
+          public void handle(AsyncResult<JsonObject> ar) {
+            if (ar.failed()) {
+              callback.handle(ar);
+              return;
+            }
+            final HeadlessDocument snapshot = createSnapshot(docType, docId, snapshotData);
+            JsonArray ops = ar.result().getArray(Key.OPS);
+            try {
+              for (Object op : ops) {
+                snapshot.consume(createOperation((JsonObject) op));
+              }
+            } catch (Exception e) {
+              callback.handle(new DefaultFutureResult<JsonObject>(new ReplyException(
+                  ReplyFailure.RECIPIENT_FAILURE, e.getMessage())));
+              return;
+            }
+            final long version = snapshotVersion + ops.size();
+            final JsonObject stats =
+                new JsonObject(((JreJsonObject) snapshot.collectGarbage()).toNative());
+            if (stats.getLong("objects") == 0) {
+              callback.handle(new DefaultFutureResult<JsonObject>(stats));
+              return;
+            }
+            storage.getVersion(docType, docId, new AsyncResultHandler<Long>() {
+              @Override
+              public void handle(AsyncResult<Long> ar) {
+                if (ar.failed()) {
+                  callback.handle(new DefaultFutureResult<JsonObject>(ar.cause()));
+                  return;
+                }
+                if (ar.result() != version) {
+                  // An op was submitted meanwhile: its snapshot must not be overwritten
+                  callback.handle(new DefaultFutureResult<JsonObject>(
+                      new JsonObject().putNumber("objects", 0).putNumber("bytes", 0)));
+                  return;
+                }
+                storage.writeSnapshot(docType, docId, snapshotData(snapshot, version),
+                                      new AsyncResultHandler<Void>() {
+                  @Override
+                  public void handle(AsyncResult<Void> ar) {
+                    if (ar.failed()) {
+                      callback.handle(new DefaultFutureResult<JsonObject>(ar.cause()));
+                      return;
+                    }
+                    log.info("Collected " + stats.getLong("objects") + " unreachable objects ("
+                             + stats.getLong("bytes") + " bytes) from " + docType + "/" + docId
+                             + " @" + version + ", " + (long) snapshot.bytesUsed()
+                             + " bytes left");
+                    callback.handle(new DefaultFutureResult<JsonObject>(stats));
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Submits the operation disposing the index references created by a session which left the
+   * named docType/docId document.
+   *
+   * @param callback called like for {@link #submit}, or with a null result if the session had no
+   *                 live reference.
+   */
+  public void disposeReferences(final String docType, final String docId, final String sessionId,
+                                final AsyncResultHandler<JsonObject> callback) {
+    lazyFetch(docType, docId, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        if (ar.failed()) {
+          callback.handle(ar);
+          return;
+        }
+        final JsonObject snapshotData = ar.result();
+        final long snapshotVersion = snapshotData.getLong(Key.VERSION);
+        storage.getOps(docType, docId, snapshotVersion, null, new AsyncResultHandler<JsonObject>() {
+          @Override
+          public void handle(AsyncResult<JsonObject> ar) {
+            if (ar.failed()) {
+              callback.handle(ar);
+              return;
+            }
+            HeadlessDocument snapshot = createSnapshot(docType, docId, snapshotData);
+            JsonArray ops = ar.result().getArray(Key.OPS);
+            try {
+              for (Object op : ops) {
+                snapshot.consume(createOperation((JsonObject) op));
+              }
+            } catch (Exception e) {
+              callback.handle(new DefaultFutureResult<JsonObject>(new ReplyException(
+                  ReplyFailure.RECIPIENT_FAILURE, e.getMessage())));
+              return;
+            }
+            CollaborativeOperation operation = snapshot.disposeReferences(sessionId);
+            if (operation == null) {
+              callback.handle(new DefaultFutureResult<JsonObject>((JsonObject) null));
+              return;
+            }
+            retrySubmit(new JsonArray(), docType, docId, operation,
+                        snapshotVersion + ops.size(), callback);
+          }
+        });
+      }
+    });
+  }
 
   /**
    * Submit an operation on the named docType/docId document.
@@ -56,10 +226,40 @@ public class OperationProcessor {
    *               version).
    * @param callback called with {v:, ops:[], snapshot:{}}
    */
-  public void submit(String docType, String docId, final JsonObject opData,
+  public void submit(final String docType, final String docId, final JsonObject opData,
                      final AsyncResultHandler<JsonObject> callback) {
-    retrySubmit(new JsonArray(), docType, docId, createOperation(opData), opData
-        .getLong(Key.VERSION), callback);
+    final Long applyAt = opData.getLong(Key.VERSION);
+    final String sessionId = opData.getString(Key.SESSION_ID);
+    AsyncResultHandler<JsonObject> done = sessionId == null ? callback
+        : new AsyncResultHandler<JsonObject>() {
+          @Override
+          public void handle(AsyncResult<JsonObject> ar) {
+            // Wakes up the ops of the session chained to this one
+            notifyChainWaiters(chainKey(docType, docId, sessionId),
+                               ar.failed() ? applyAt : null);
+            callback.handle(ar);
+          }
+        };
+    Number chained = opData.getNumber(Key.CHAINED);
+    if (chained == null || chained.intValue() == 0 || applyAt == null) {
+      retrySubmit(new JsonArray(), docType, docId, createOperation(opData), applyAt, done);
+      return;
+    }
+    submitChained(docType, docId, opData, applyAt, chained.intValue(),
+                  System.currentTimeMillis() + CHAIN_TIMEOUT_MS, done);
+  }
+
+  private void addChainWaiter(String key, ChainWaiter waiter) {
+    List<ChainWaiter> waiters = chainWaiters.get(key);
+    if (waiters == null) {
+      waiters = new ArrayList<ChainWaiter>();
+      chainWaiters.put(key, waiters);
+    }
+    waiters.add(waiter);
+  }
+
+  private static String chainKey(String docType, String docId, String sessionId) {
+    return docType + "/" + docId + "/" + sessionId;
   }
 
   private CollaborativeOperation createOperation(JsonObject opData) {
@@ -83,7 +283,7 @@ public class OperationProcessor {
    */
   private void doSubmit(final JsonArray transformedOps, final String docType,
                         final String docId, final CollaborativeOperation operation, final long applyAt,
-                        final DocumentBridge snapshot, final AsyncResultHandler<JsonObject> callback) {
+                        final HeadlessDocument snapshot, final AsyncResultHandler<JsonObject> callback) {
     final JsonObject opData =
         new JsonObject(((JreJsonObject) operation.toJson()).toNative()).putNumber(Key.VERSION,
                                                                                   applyAt);
@@ -103,11 +303,7 @@ public class OperationProcessor {
           return;
         }
         log.finest("Wrote op @" + applyAt);
-        final JsonObject root = new JsonObject(((JreJsonObject) snapshot.toJson()).toNative());
-        JsonObject snapshotData = new JsonObject().putNumber(Key.VERSION, applyAt + 1)
-            .putObject(DeltaStorage.ROOT, root).putArray(
-                Key.SNAPSHOT, new JsonArray(((JreJsonArray) snapshot.toSnapshot()).toNative()));
-        writeSnapshotAfterSubmit(docType, docId, snapshotData, opData,
+        writeSnapshotAfterSubmit(docType, docId, snapshotData(snapshot, applyAt + 1), opData,
                                  new AsyncResultHandler<Void>() {
           @Override
           public void handle(AsyncResult<Void> ar) {
@@ -121,11 +317,10 @@ public class OperationProcessor {
 
             // postSubmit is for things like publishing the operation over pubsub. We should
             // probably make this asyncronous.
-            storage.postSubmit(docType, docId, opData, root);
+            storage.postSubmit(docType, docId, opData);
             log.finest("Wrote snapshot @" + (applyAt + 1));
             callback.handle(new DefaultFutureResult<JsonObject>(new JsonObject().putNumber(
-                Key.VERSION, applyAt).putArray(Key.OPS, transformedOps).putObject(
-                Key.SNAPSHOT, root)));
+                Key.VERSION, applyAt).putArray(Key.OPS, transformedOps)));
           }
         });
       }
@@ -175,7 +370,7 @@ public class OperationProcessor {
               callback.handle(ar);
               return;
             }
-            final DocumentBridge snapshot = createSnapshot(docType, docId, snapshotData);
+            final HeadlessDocument snapshot = createSnapshot(docType, docId, snapshotData);
             JsonArray ops = ar.result().getArray(Key.OPS);
             if (ops.size() > 0) {
               log.finest("Transform Needed");
@@ -234,6 +429,9 @@ public class OperationProcessor {
             }
 
             // Ok, now we can try to apply the op.
+            double bytesUsed = snapshot.bytesUsed();
+            long maxDocumentBytes = container.config().getObject("realtime_store",
+                new JsonObject()).getLong("max_document_bytes", 0);
             try {
               snapshot.consume(transformed);
             } catch (Exception e) {
@@ -242,6 +440,13 @@ public class OperationProcessor {
                   ReplyFailure.RECIPIENT_FAILURE, e.getMessage())));
               return;
             }
+            // An op which shrinks a document already over the limit is still accepted
+            if (maxDocumentBytes > 0 && snapshot.bytesUsed() > maxDocumentBytes
+                && snapshot.bytesUsed() > bytesUsed) {
+              callback.handle(new DefaultFutureResult<JsonObject>(new ReplyException(
+                  ReplyFailure.RECIPIENT_FAILURE, "Document too large")));
+              return;
+            }
             doSubmit(transformedOps, docType, docId, transformed, opV, snapshot, callback);
           }
         });
@@ -249,6 +454,142 @@ public class OperationProcessor {
     });
   }
 
+  /**
+   * @return {v:, snapshot:[], root:{}, sessions:{}}, the data stored for the snapshot at version.
+   *         root is only built if the storage keeps it.
+   */
+  private JsonObject snapshotData(HeadlessDocument snapshot, long version) {
+    JsonObject snapshotData = new JsonObject().putNumber(Key.VERSION, version)
+        .putArray(Key.SNAPSHOT, new JsonArray(((JreJsonArray) snapshot.toSnapshot()).toNative()));
+    if (storage.keepsRoot()) {
+      snapshotData.putObject(DeltaStorage.ROOT,
+          new JsonObject(((JreJsonObject) snapshot.toJson()).toNative()));
+    }
+    Map<String, String> referenceSessions = snapshot.referenceSessions();
+    if (!referenceSessions.isEmpty()) {
+      JsonObject sessions = new JsonObject();
+      for (Map.Entry<String, String> entry : referenceSessions.entrySet()) {
+        sessions.putString(entry.getKey(), entry.getValue());
+      }
+      snapshotData.putObject(DeltaStorage.REFERENCE_SESSIONS, sessions);
+    }
+    return snapshotData;
+  }
+
+  /**
+   * Wakes up the chained ops waiting for an op of their session, once it was applied or rejected.
+   *
+   * @param rejectedAt the version the op was submitted at if it was rejected, otherwise null.
+   */
+  private void notifyChainWaiters(String key, Long rejectedAt) {
+    List<ChainWaiter> waiters = chainWaiters.remove(key);
+    if (waiters == null) {
+      return;
+    }
+    for (ChainWaiter waiter : waiters) {
+      waiter.isNotified = true;
+      if (rejectedAt != null && rejectedAt < waiter.applyAt) {
+        waiter.isBroken = true;
+      }
+      if (waiter.timerId != -1) {
+        vertx.cancelTimer(waiter.timerId);
+        waiter.handler.handle(null);
+      }
+    }
+  }
+
+  private static void rejectChained(AsyncResultHandler<JsonObject> callback) {
+    callback.handle(new DefaultFutureResult<JsonObject>(new ReplyException(
+        ReplyFailure.RECIPIENT_FAILURE, "Pipeline broken")));
+  }
+
+  private void removeChainWaiter(String key, ChainWaiter waiter) {
+    List<ChainWaiter> waiters = chainWaiters.get(key);
+    if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+      chainWaiters.remove(key);
+    }
+  }
+
+  /**
+   * Submits a chained op, which was built on top of the ops its session sent before it: they must
+   * have been applied right before its version. Otherwise one of them was transformed or rejected,
+   * and so is the op: the client sends it again, transformed, once the ops before it are acked.
+   * While they are still being submitted, the op waits for the next op of its session to be
+   * applied or rejected, until the deadline.
+   *
+   * @param chained the number of ops the session sent before this one, not acked yet when it was
+   *          sent.
+   */
+  private void submitChained(final String docType, final String docId, final JsonObject opData,
+                             final long applyAt, final int chained, final long deadline,
+                             final AsyncResultHandler<JsonObject> callback) {
+    if (applyAt < chained) {
+      callback.handle(new DefaultFutureResult<JsonObject>(new ReplyException(
+          ReplyFailure.RECIPIENT_FAILURE, "Invalid opData version")));
+      return;
+    }
+    final String sessionId = opData.getString(Key.SESSION_ID);
+    if (sessionId == null) {
+      rejectChained(callback);
+      return;
+    }
+    final String key = chainKey(docType, docId, sessionId);
+    // Added before fetching the ops, so that an op of the session applied meanwhile isn't missed
+    final ChainWaiter waiter = new ChainWaiter(applyAt);
+    addChainWaiter(key, waiter);
+    storage.getOps(docType, docId, applyAt - chained, null, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        if (ar.failed()) {
+          removeChainWaiter(key, waiter);
+          callback.handle(ar);
+          return;
+        }
+        JsonArray ops = ar.result().getArray(Key.OPS);
+        int applied = Math.min(ops.size(), chained);
+        boolean broken = waiter.isBroken;
+        for (int i = 0; i < applied && !broken; i++) {
+          broken = !sessionId.equals(ops.<JsonObject> get(i).getString(Key.SESSION_ID));
+        }
+        if (!broken && applied == chained) {
+          removeChainWaiter(key, waiter);
+          retrySubmit(new JsonArray(), docType, docId, createOperation(opData), applyAt,
+                      callback);
+          return;
+        }
+        if (!broken && waiter.isNotified) {
+          // An op of the session was applied while fetching the ops
+          submitChained(docType, docId, opData, applyAt, chained, deadline, callback);
+          return;
+        }
+        long delay = deadline - System.currentTimeMillis();
+        if (broken || delay <= 0) {
+          removeChainWaiter(key, waiter);
+          rejectChained(callback);
+          return;
+        }
+        // The ops sent before are still being submitted
+        waiter.handler = new Handler<Void>() {
+          @Override
+          public void handle(Void ignore) {
+            if (waiter.isBroken) {
+              rejectChained(callback);
+            } else {
+              submitChained(docType, docId, opData, applyAt, chained, deadline, callback);
+            }
+          }
+        };
+        waiter.timerId = vertx.setTimer(delay, new Handler<Long>() {
+          @Override
+          public void handle(Long timerId) {
+            removeChainWaiter(key, waiter);
+            rejectChained(callback);
+          }
+        });
+      }
+    });
+  }
+
   private void writeSnapshotAfterSubmit(String docType, String docId, JsonObject snapshotData,
                                         JsonObject opData, AsyncResultHandler<Void> callback) {
     storage.writeSnapshot(docType, docId, snapshotData, callback);
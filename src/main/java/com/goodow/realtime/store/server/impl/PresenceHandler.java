@@ -25,6 +25,7 @@ import com.goodow.realtime.store.channel.Constants.Topic;
 import com.goodow.realtime.store.impl.CollaboratorImpl;
 
 import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.eventbus.EventBus;
@@ -37,15 +38,24 @@ import org.vertx.java.platform.Container;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class PresenceHandler {
+  private static final Logger log = Logger.getLogger(PresenceHandler.class.getName());
+  /* How long a session stays away from a document before its references are disposed. */
+  static final long DISPOSE_DELAY_MS = 60 * 1000;
   @Inject private Vertx vertx;
   @Inject private Container container;
   @Inject private AnonymousUsers anonymousUsers;
+  @Inject private OperationProcessor processor;
   private String address;
   private Map<String, JsonObject> collaborators = new HashMap<String, JsonObject>();
+  /* The timers disposing the references of the sessions which left a document, by topic and
+   * session. */
+  private Map<String, Long> disposeTimers = new HashMap<String, Long>();
 
   public void start(final CountingCompletionHandler<Void> countDownLatch) {
     final EventBus eb = vertx.eventBus();
@@ -95,9 +105,18 @@ public class PresenceHandler {
         if (!matcher.matches()) {
           return;
         }
-        JsonObject collaborator = getCollaborator(body.getString(WebSocketBus.SESSION));
+        String sessionId = body.getString(WebSocketBus.SESSION);
+        JsonObject collaborator = getCollaborator(sessionId);
         collaborator.putBoolean(Key.IS_JOINED, body.getBoolean(Key.IS_JOINED));
         eb.publish(address + matcher.group(1) + Topic.PRESENCE + Topic.WATCH, collaborator);
+        if (body.getBoolean(Key.IS_JOINED)) {
+          Long timerId = disposeTimers.remove(topic + "/" + sessionId);
+          if (timerId != null) {
+            vertx.cancelTimer(timerId);
+          }
+        } else {
+          scheduleDisposeReferences(topic, matcher.group(1).substring(1), sessionId);
+        }
       }
     }, new Handler<AsyncResult<Void>>() {
       @Override
@@ -111,6 +130,36 @@ public class PresenceHandler {
     });
   }
 
+  /**
+   * Disposes the index references, such as cursors, created by a session which left a document.
+   * Once the last session has left, the objects which can't be reached from the root are dropped
+   * as well: no client is left to hold them.
+   */
+  private void disposeReferences(String id, String sessionId, final boolean isLastSession) {
+    final String[] typeAndId = OperationHandler.getTypeAndId(id);
+    processor.disposeReferences(typeAndId[0], typeAndId[1], sessionId,
+        new AsyncResultHandler<JsonObject>() {
+          @Override
+          public void handle(AsyncResult<JsonObject> ar) {
+            if (ar.failed()) {
+              log.log(Level.WARNING, "Failed to dispose the references of a session", ar.cause());
+            }
+            if (!isLastSession) {
+              return;
+            }
+            processor.collectGarbage(typeAndId[0], typeAndId[1],
+                new AsyncResultHandler<JsonObject>() {
+                  @Override
+                  public void handle(AsyncResult<JsonObject> ar) {
+                    if (ar.failed()) {
+                      log.log(Level.WARNING, "Failed to collect unreachable objects", ar.cause());
+                    }
+                  }
+                });
+          }
+        });
+  }
+
   private JsonObject getCollaborator(String sessionId) {
     JsonObject toRtn = collaborators.get(sessionId);
     if (toRtn == null) {
@@ -125,4 +174,27 @@ public class PresenceHandler {
     }
     return toRtn;
   }
-}
\ No newline at end of file
+
+  /**
+   * Disposes the references of a session once it has been away from a document for
+   * {@link #DISPOSE_DELAY_MS}, so that a short disconnection or a reload keeps its cursors.
+   */
+  private void scheduleDisposeReferences(final String topic, final String id,
+                                         final String sessionId) {
+    final String key = topic + "/" + sessionId;
+    Long timerId = disposeTimers.remove(key);
+    if (timerId != null) {
+      vertx.cancelTimer(timerId);
+    }
+    disposeTimers.put(key, vertx.setTimer(DISPOSE_DELAY_MS, new Handler<Long>() {
+      @Override
+      public void handle(Long timerId) {
+        disposeTimers.remove(key);
+        Set<String> sessions = vertx.sharedData().getSet(BridgeHook.getSessionsKey(topic));
+        if (!sessions.contains(sessionId)) {
+          disposeReferences(id, sessionId, sessions.isEmpty());
+        }
+      }
+    }));
+  }
+}
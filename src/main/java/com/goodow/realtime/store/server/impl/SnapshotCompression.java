@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.server.DeltaStorage;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the snapshot of a snapshotData deflated, under {@link DeltaStorage#COMPRESSED_SNAPSHOT}.
+ * Snapshots are mostly made of repeated component types, ids and text, which deflate well.
+ *
+ * A compressed snapshot is only inflated when {@link #snapshot} is called, so requests which don't
+ * need it, such as a get of the root only, never pay for it.
+ */
+public class SnapshotCompression {
+  /* Snapshots encoded in fewer bytes than this are stored as is. */
+  static final int MIN_BYTES = 4 * 1024;
+  private static final String UTF8 = "UTF-8";
+
+  /**
+   * Replaces the snapshot by its compressed envelope, if it is large enough to be worth it.
+   *
+   * @return snapshotData
+   */
+  public static JsonObject compress(JsonObject snapshotData) {
+    JsonArray snapshot = snapshotData.getArray(Key.SNAPSHOT);
+    if (snapshot == null) {
+      return snapshotData;
+    }
+    byte[] encoded = utf8(snapshot.encode());
+    if (encoded.length < MIN_BYTES) {
+      return snapshotData;
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(encoded);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length / 4);
+    byte[] buffer = new byte[8 * 1024];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    snapshotData.removeField(Key.SNAPSHOT);
+    return snapshotData.putBinary(DeltaStorage.COMPRESSED_SNAPSHOT, out.toByteArray());
+  }
+
+  /**
+   * Returns the snapshot of a snapshotData, inflating it in place if it is compressed.
+   *
+   * @return the snapshot, or null if the snapshotData has none.
+   */
+  public static JsonArray snapshot(JsonObject snapshotData) {
+    JsonArray snapshot = snapshotData.getArray(Key.SNAPSHOT);
+    if (snapshot != null || !snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT)) {
+      return snapshot;
+    }
+    byte[] compressed = snapshotData.getBinary(DeltaStorage.COMPRESSED_SNAPSHOT);
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+    byte[] buffer = new byte[8 * 1024];
+    try {
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && inflater.needsInput()) {
+          throw new IllegalStateException("Truncated compressed snapshot");
+        }
+        out.write(buffer, 0, length);
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupted compressed snapshot", e);
+    } finally {
+      inflater.end();
+    }
+    try {
+      snapshot = new JsonArray(out.toString(UTF8));
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    snapshotData.removeField(DeltaStorage.COMPRESSED_SNAPSHOT);
+    snapshotData.putArray(Key.SNAPSHOT, snapshot);
+    return snapshot;
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
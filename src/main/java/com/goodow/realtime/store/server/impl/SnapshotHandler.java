@@ -16,6 +16,7 @@ package com.goodow.realtime.store.server.impl;
 import com.google.inject.Inject;
 
 import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.json.impl.JreJsonObject;
 import com.goodow.realtime.store.channel.Constants.Key;
 import com.goodow.realtime.store.channel.Constants.Topic;
 import com.goodow.realtime.store.server.DeltaStorage;
@@ -28,12 +29,16 @@ import org.vertx.java.core.Vertx;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.eventbus.ReplyException;
 import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.impl.DefaultFutureResult;
 import org.vertx.java.core.impl.VertxInternal;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Container;
 
 public class SnapshotHandler {
+  /* Above this number of ops since the known version, the full snapshot is sent instead. */
+  static final int MAX_DELTA_OPS = 500;
+
   @Inject private Vertx vertx;
   @Inject private Container container;
   @Inject private DeltaStorage storage;
@@ -68,8 +73,8 @@ public class SnapshotHandler {
           }
           doPost(docType, docId, opData, message);
         } else { // get
-          doGet(docType, docId, body.getLong(Key.VERSION), body.getString(WebSocketBus.SESSION),
-                message);
+          doGet(docType, docId, body.getLong(Key.VERSION), body.getLong(Key.KNOWN_VERSION),
+                body.getString(Key.FIELDS), body.getString(WebSocketBus.SESSION), message);
         }
       }
     }, new Handler<AsyncResult<Void>>() {
@@ -84,8 +89,8 @@ public class SnapshotHandler {
     });
   }
 
-  private void doGet(String docType, String docId, Long version, String sessionId,
-                     final Message<JsonObject> resp) {
+  private void doGet(final String docType, final String docId, Long version, Long knownVersion,
+                     final String fields, String sessionId, final Message<JsonObject> resp) {
     final CountingCompletionHandler<Void> completionHandler =
         new CountingCompletionHandler<Void>((VertxInternal) vertx, 2);
     final Object[] results = new Object[2];
@@ -100,11 +105,13 @@ public class SnapshotHandler {
         JsonObject toRtn = (JsonObject) results[0];
         if (toRtn == null) {
           toRtn = new JsonObject();
+        } else if (!toRtn.containsField(Key.OPS)) {
+          selectFields(docType, docId, toRtn, fields);
         }
         resp.reply(toRtn.putArray(Key.COLLABORATORS, (JsonArray)results[1]));
       }
     });
-    storage.getSnapshot(docType, docId, version, new AsyncResultHandler<JsonObject>() {
+    AsyncResultHandler<JsonObject> snapshotHandler = new AsyncResultHandler<JsonObject>() {
       @Override
       public void handle(AsyncResult<JsonObject> ar) {
         if (ar.failed()) {
@@ -114,7 +121,12 @@ public class SnapshotHandler {
           completionHandler.complete();
         }
       }
-    });
+    };
+    if (version == null && knownVersion != null) {
+      getOpsSince(docType, docId, knownVersion, snapshotHandler);
+    } else {
+      storage.getSnapshot(docType, docId, version, snapshotHandler);
+    }
     JsonObject msg = new JsonObject().putString(Key.ID, docType + "/" + docId);
     if (sessionId != null) {
       msg.putString(WebSocketBus.SESSION, sessionId);
@@ -157,10 +169,78 @@ public class SnapshotHandler {
           resp.fail(cause.failureCode(), cause.getMessage());
           return;
         }
-        JsonObject result = ar.result();
-        result.removeField(Key.SNAPSHOT);
-        resp.reply(result);
+        resp.reply(ar.result());
+      }
+    });
+  }
+
+  /**
+   * Calls back with {v:, ops:[]}, the ops applied since the known version, if the oplog still has
+   * them and there are at most {@link #MAX_DELTA_OPS}. Otherwise with the current snapshot.
+   */
+  void getOpsSince(final String docType, final String docId, final long knownVersion,
+                   final AsyncResultHandler<JsonObject> callback) {
+    storage.getOps(docType, docId, knownVersion, knownVersion + MAX_DELTA_OPS + 1,
+                   new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        if (ar.failed()) {
+          callback.handle(ar);
+          return;
+        }
+        final JsonArray ops = ar.result().getArray(Key.OPS);
+        if (ops.size() > MAX_DELTA_OPS || (ops.size() > 0
+            && ops.<JsonObject> get(0).getLong(Key.VERSION, knownVersion) != knownVersion)) {
+          storage.getSnapshot(docType, docId, null, callback);
+          return;
+        }
+        if (ops.size() > 0) {
+          callback.handle(new DefaultFutureResult<JsonObject>(new JsonObject().putNumber(
+              Key.VERSION, knownVersion + ops.size()).putArray(Key.OPS, ops)));
+          return;
+        }
+        // Either the client is up to date, or the oplog doesn't go back that far
+        storage.getVersion(docType, docId, new AsyncResultHandler<Long>() {
+          @Override
+          public void handle(AsyncResult<Long> ar) {
+            if (ar.failed()) {
+              callback.handle(new DefaultFutureResult<JsonObject>(ar.cause()));
+            } else if (ar.result() != null && ar.result() == knownVersion) {
+              callback.handle(new DefaultFutureResult<JsonObject>(new JsonObject().putNumber(
+                  Key.VERSION, knownVersion).putArray(Key.OPS, ops)));
+            } else {
+              storage.getSnapshot(docType, docId, null, callback);
+            }
+          }
+        });
       }
     });
   }
+
+  /**
+   * Keeps the representations of the document asked for, deriving the root from the snapshot if
+   * the storage didn't keep it. The snapshot and the root hold the same values, so asking for only
+   * one of them about halves the reply.
+   */
+  static void selectFields(String docType, String docId, JsonObject snapshotData,
+                           String fields) {
+    if (!Key.SNAPSHOT.equals(fields) && !snapshotData.containsField(DeltaStorage.ROOT)) {
+      HeadlessDocument snapshot =
+          OperationProcessor.createSnapshot(docType, docId, snapshotData);
+      snapshotData.putObject(DeltaStorage.ROOT,
+          new JsonObject(((JreJsonObject) snapshot.toJson()).toNative()));
+    }
+    if (Key.SNAPSHOT.equals(fields)) {
+      snapshotData.removeField(DeltaStorage.ROOT);
+    } else if (DeltaStorage.ROOT.equals(fields)) {
+      snapshotData.removeField(Key.SNAPSHOT);
+      snapshotData.removeField(DeltaStorage.COMPRESSED_SNAPSHOT);
+    }
+    if (!DeltaStorage.ROOT.equals(fields)) {
+      // Clients only understand the plain snapshot
+      SnapshotCompression.snapshot(snapshotData);
+    }
+    // Only used by the server, to dispose the references of leaving sessions
+    snapshotData.removeField(DeltaStorage.REFERENCE_SESSIONS);
+  }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@ package com.goodow.realtime.store.server.persistence;
 import com.goodow.realtime.store.channel.Constants.Key;
 import com.goodow.realtime.store.server.DeltaStorage;
 import com.goodow.realtime.store.server.StoreModule;
+import com.goodow.realtime.store.server.impl.SnapshotCompression;
 
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
@@ -30,6 +31,7 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Container;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -37,6 +39,8 @@ class ElasticSearchDriver {
   private static final String DEFAULT_SEARCH_ADDRESS = "realtime/search";
   private static final String INDEX = "realtime";
   private static final String _SNAPSHOT = "_snapshot";
+  private static final String _SESSIONS = "_sessions";
+  private static final String _ZSNAPSHOT = "_zsnapshot";
   private static final String _OP = "_op";
   private static final String DOC_ID = "docId";
 
@@ -173,8 +177,16 @@ class ElasticSearchDriver {
 
   public void writeSnapshot(String docType, String docId, JsonObject snapshotData,
       final AsyncResultHandler<Void> callback) {
-    JsonObject source = snapshotData.getObject(DeltaStorage.ROOT)
-        .putArray(_SNAPSHOT, snapshotData.getArray("snapshot"));
+    SnapshotCompression.compress(snapshotData);
+    JsonObject source = snapshotData.getObject(DeltaStorage.ROOT);
+    if (snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT)) {
+      source.putBinary(_ZSNAPSHOT, snapshotData.getBinary(DeltaStorage.COMPRESSED_SNAPSHOT));
+    } else {
+      source.putArray(_SNAPSHOT, snapshotData.getArray(Key.SNAPSHOT));
+    }
+    if (snapshotData.containsField(DeltaStorage.REFERENCE_SESSIONS)) {
+      source.putObject(_SESSIONS, snapshotData.getObject(DeltaStorage.REFERENCE_SESSIONS));
+    }
     JsonObject index =
         new JsonObject().putString("action", "index").putString("_index", INDEX).putString("_type",
             docType).putString("_id", docId).putString("version_type", "external").putNumber(
@@ -214,11 +226,25 @@ class ElasticSearchDriver {
 
   @SuppressWarnings("unchecked")
   private JsonObject castToSnapshotData(JsonObject body) {
+    if (!body.getBoolean("found")) {
+      return null;
+    }
     JsonObject source = body.getObject("_source");
-    return !body.getBoolean("found") ? null :
-        new JsonObject().putNumber(Key.VERSION, body.getLong("_version"))
-        .putArray("snapshot", new JsonArray((List<Object>) source.removeField(_SNAPSHOT)))
-        .putObject(DeltaStorage.ROOT, source);
+    JsonObject snapshotData = new JsonObject().putNumber(Key.VERSION, body.getLong("_version"));
+    Object compressed = source.removeField(_ZSNAPSHOT);
+    if (compressed != null) {
+      // Inflated lazily, see SnapshotCompression
+      snapshotData.putString(DeltaStorage.COMPRESSED_SNAPSHOT, (String) compressed);
+    } else {
+      snapshotData.putArray(Key.SNAPSHOT,
+          new JsonArray((List<Object>) source.removeField(_SNAPSHOT)));
+    }
+    Object sessions = source.removeField(_SESSIONS);
+    if (sessions != null) {
+      snapshotData.putObject(DeltaStorage.REFERENCE_SESSIONS,
+          new JsonObject((Map<String, Object>) sessions));
+    }
+    return snapshotData.putObject(DeltaStorage.ROOT, source);
   }
 
   private void handleVoidCallback(final AsyncResultHandler<Void> callback,
@@ -232,8 +232,7 @@ class RedisDriver {
     });
   }
 
-  public void postSubmit(final String docType, String docId, final JsonObject opData,
-      final JsonObject snapshot) {
+  public void postSubmit(final String docType, String docId, final JsonObject opData) {
     // Publish the change to the type name (not the docId!) for queries.
     eb.publish(MemoryDeltaStorage.getDocTypeChannel(address, docType), opData);
 
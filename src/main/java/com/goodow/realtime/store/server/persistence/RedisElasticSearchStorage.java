@@ -44,6 +44,12 @@ public class RedisElasticSearchStorage implements DeltaStorage {
     }
   }
 
+  @Override
+  public boolean keepsRoot() {
+    // Indexed, for searches
+    return true;
+  }
+
   @Override
   public void writeSnapshot(String docType, String docId, JsonObject snapshotData,
                             AsyncResultHandler<Void> callback) {
@@ -74,7 +80,7 @@ public class RedisElasticSearchStorage implements DeltaStorage {
   }
 
   @Override
-  public void postSubmit(String docType, String docId, JsonObject opData, JsonObject snapshot) {
-    redis.postSubmit(docType, docId, opData, snapshot);
+  public void postSubmit(String docType, String docId, JsonObject opData) {
+    redis.postSubmit(docType, docId, opData);
   }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.channel;
+
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * Reads and writes the versions of the channel layer in messages, as compiled by GWT: JavaScript
+ * numbers are doubles, which hold versions exactly up to 2^53, and a boxed long isn't a number
+ * there, so versions go through a double.
+ */
+public final class Versions {
+  /**
+   * @return the version held in the given field, which must be present.
+   */
+  public static long get(JsonObject json, String key) {
+    return (long) json.getNumber(key);
+  }
+
+  /**
+   * Writes a version into the given field.
+   *
+   * @return the given object, for chaining.
+   */
+  public static JsonObject set(JsonObject json, String key, long version) {
+    return json.set(key, (double) version);
+  }
+
+  private Versions() {
+  }
+}
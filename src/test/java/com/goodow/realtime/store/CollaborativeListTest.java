@@ -18,6 +18,7 @@ import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.store.impl.JsonSerializer;
 import com.goodow.realtime.store.impl.MemoryStore;
 
 import org.junit.Test;
@@ -57,6 +58,22 @@ public class CollaborativeListTest extends TestVerticle {
     VertxAssert.testComplete();
   }
 
+  @Test
+  public void testBytesUsed() {
+    double bytesUsed = mod.bytesUsed();
+    list.push("abc");
+    list.push(true);
+    double pushed = JsonSerializer.sizeOf(JsonSerializer.serializeObject("abc")) + 1
+        + JsonSerializer.sizeOf(JsonSerializer.serializeObject(true)) + 1;
+    VertxAssert.assertEquals(bytesUsed + pushed, mod.bytesUsed(), 0);
+    list.set(1, false);
+    VertxAssert.assertEquals(bytesUsed + pushed + 1, mod.bytesUsed(), 0);
+    list.clear();
+    VertxAssert.assertEquals(bytesUsed, mod.bytesUsed(), 0);
+
+    VertxAssert.testComplete();
+  }
+
   @Test
   public void testClear() {
     list.push("a");
@@ -166,4 +183,30 @@ public class CollaborativeListTest extends TestVerticle {
 
     VertxAssert.testComplete();
   }
+
+  @Test
+  public void testMove() {
+    list = mod.createList(Json.createArray().push("a").push("b").push("c").push("d").push("e"));
+    list.move(3, 1, 2);
+    VertxAssert.assertEquals("adebc", join(list.asArray()));
+    list.move(0, 5, 1);
+    VertxAssert.assertEquals("debca", join(list.asArray()));
+    list.move(1, 1, 2);
+    VertxAssert.assertEquals("debca", join(list.asArray()));
+    try {
+      list.move(0, 1, 2);
+      VertxAssert.fail();
+    } catch (ArrayIndexOutOfBoundsException e) {
+    }
+
+    VertxAssert.testComplete();
+  }
+
+  private static String join(JsonArray array) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0, len = array.length(); i < len; i++) {
+      sb.append(array.getString(i));
+    }
+    return sb.toString();
+  }
 }
@@ -18,6 +18,7 @@ import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.store.impl.JsonSerializer;
 import com.goodow.realtime.store.impl.MemoryStore;
 
 import org.junit.Test;
@@ -45,6 +46,19 @@ public class CollaborativeMapTest extends TestVerticle {
     }, null, null);
   }
 
+  @Test
+  public void testBytesUsed() {
+    double bytesUsed = mod.bytesUsed();
+    map.set("k", "v");
+    VertxAssert.assertEquals(bytesUsed + sizeOfEntry("k", "v"), mod.bytesUsed(), 0);
+    map.set("k", 12.5);
+    VertxAssert.assertEquals(bytesUsed + sizeOfEntry("k", 12.5), mod.bytesUsed(), 0);
+    map.remove("k");
+    VertxAssert.assertEquals(bytesUsed, mod.bytesUsed(), 0);
+
+    VertxAssert.testComplete();
+  }
+
   @Test
   public void testClear() {
     map.set("k1", "v1");
@@ -155,6 +169,25 @@ public class CollaborativeMapTest extends TestVerticle {
     VertxAssert.testComplete();
   }
 
+  @Test
+  public void testObjectChangedBubblesFromObjectAttachedLater() {
+    map.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        // The string had no parent when initialized, but events bubble once the tick ends
+        JsonArray events = event.events();
+        VertxAssert.assertEquals(2, events.length());
+        VertxAssert.assertEquals(EventType.TEXT_INSERTED, events.<BaseModelEvent> get(0).type());
+        VertxAssert.assertEquals("abc", events.<TextInsertedEvent> get(0).text());
+        VertxAssert.assertEquals(EventType.VALUE_CHANGED, events.<BaseModelEvent> get(1).type());
+
+        VertxAssert.testComplete();
+      }
+    });
+    CollaborativeString str = mod.createString("abc");
+    map.set("s", str);
+  }
+
   @Test
   public void testRemove() {
     map.set("k1", "v1");
@@ -165,6 +198,25 @@ public class CollaborativeMapTest extends TestVerticle {
     VertxAssert.testComplete();
   }
 
+  @Test
+  public void testRemoveAll() {
+    map.setAll(Json.createObject().set("k1", "v1").set("k2", "v2").set("k3", "v3"));
+    map.removeAll(Json.createArray().push("k1").push("k3").push("missing"));
+    VertxAssert.assertEquals(1, map.size());
+    VertxAssert.assertEquals("v2", map.get("k2"));
+    map.removeAll(Json.createArray());
+    VertxAssert.assertEquals(1, map.size());
+    try {
+      map.removeAll(Json.createArray().push("k2").push(null));
+      VertxAssert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+    // Nothing removed
+    VertxAssert.assertEquals("v2", map.get("k2"));
+
+    VertxAssert.testComplete();
+  }
+
   @Test
   public void testSet() {
     JsonArray v4 = Json.createArray();
@@ -193,6 +245,32 @@ public class CollaborativeMapTest extends TestVerticle {
     VertxAssert.testComplete();
   }
 
+  @Test
+  public void testSetAll() {
+    // Created before listening, so that only the events of setAll are seen
+    map = mod.createMap(Json.createObject().set("k1", "old").set("k3", "removed"));
+    map.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        JsonArray events = event.events();
+        VertxAssert.assertEquals(4, events.length());
+        VertxAssert.assertEquals("old", events.<ValueChangedEvent> get(0).oldValue());
+        VertxAssert.assertEquals("k3", events.<ValueChangedEvent> get(2).property());
+        VertxAssert.assertNull(events.<ValueChangedEvent> get(2).newValue());
+        VertxAssert.testComplete();
+      }
+    });
+    map.setAll(Json.createObject().set("k1", "v1").set("k2", true).set("k3", (String) null)
+        .set("k4", Json.createArray().push(1)));
+
+    VertxAssert.assertEquals(3, map.size());
+    VertxAssert.assertEquals("v1", map.get("k1"));
+    VertxAssert.assertEquals(true, map.get("k2"));
+    // A null value removes the key
+    VertxAssert.assertFalse(map.has("k3"));
+    VertxAssert.assertEquals("[1]", map.<JsonArray> get("k4").toJsonString());
+  }
+
   @Test
   public void testValues() {
     map.set("k1", "v1");
@@ -203,4 +281,10 @@ public class CollaborativeMapTest extends TestVerticle {
 
     VertxAssert.testComplete();
   }
+
+  private static int sizeOfEntry(String key, Object value) {
+    // "<key>":<serialized value> and its separator
+    return JsonSerializer.sizeOf(key) + JsonSerializer.sizeOf(JsonSerializer.serializeObject(value))
+        + 2;
+  }
 }
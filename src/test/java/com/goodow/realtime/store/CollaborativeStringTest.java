@@ -17,12 +17,17 @@ import com.goodow.realtime.channel.server.impl.VertxPlatform;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.JsonSerializer;
 import com.goodow.realtime.store.impl.MemoryStore;
 
 import org.junit.Test;
 import org.vertx.testtools.TestVerticle;
 import org.vertx.testtools.VertxAssert;
 
+import java.util.Arrays;
+
 public class CollaborativeStringTest extends TestVerticle {
   static void assertArraySame(JsonArray expecteds, JsonArray actuals) {
     VertxAssert.assertEquals(expecteds.length(), actuals.length());
@@ -34,22 +39,48 @@ public class CollaborativeStringTest extends TestVerticle {
   CollaborativeString str;
 
   Model mod;
+  /* The last operation submitted, and the number of operations submitted. */
+  CollaborativeOperation last;
+  int submitted;
 
   @Override
   public void start() {
     initialize();
     VertxPlatform.register(vertx);
 
-    Store store = new MemoryStore();
-    store.load("docId", new Handler<Document>() {
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    bridge.setOutputSink(new DocumentBridge.OutputSink() {
       @Override
-      public void handle(Document doc) {
-        mod = doc.getModel();
-        str = mod.createString(null);
+      public void close() {
+      }
 
-        startTests();
+      @Override
+      public void consume(CollaborativeOperation op) {
+        last = op;
+        submitted++;
       }
-    }, null, null);
+    });
+    mod = bridge.getDocument().getModel();
+    str = mod.createString(null);
+
+    startTests();
+  }
+
+  @Test
+  public void testBytesUsed() {
+    double bytesUsed = mod.bytesUsed();
+    str.append("abcdef");
+    VertxAssert.assertEquals(bytesUsed + 6, mod.bytesUsed(), 0);
+    str.removeRange(1, 3);
+    VertxAssert.assertEquals(bytesUsed + 4, mod.bytesUsed(), 0);
+
+    // Creating an object accounts for its create component
+    CollaborativeString created = mod.createString("xy");
+    VertxAssert.assertEquals(bytesUsed + 4 + JsonSerializer.sizeOf(created.id()) + 6 + 2,
+        mod.bytesUsed(), 0);
+
+    VertxAssert.testComplete();
   }
 
   @Test
@@ -263,4 +294,128 @@ public class CollaborativeStringTest extends TestVerticle {
     str.setText("0236");
     VertxAssert.assertEquals("0236", str.getText());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSetTextDelete() {
+    str.setText("abcdef");
+    str.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        // After the insertion of the initial text
+        VertxAssert.assertEquals(2, event.events().length());
+        VertxAssert.assertEquals(2, event.events().<TextDeletedEvent>get(1).index());
+        VertxAssert.assertEquals("cde", event.events().<TextDeletedEvent>get(1).text());
+
+        VertxAssert.testComplete();
+      }
+    });
+    submitted = 0;
+    str.setText("abf");
+    VertxAssert.assertEquals("abf", str.getText());
+    VertxAssert.assertEquals(1, submitted);
+    VertxAssert.assertEquals(1, last.components.length());
+  }
+
+  @Test
+  public void testSetTextInsert() {
+    str.setText("abf");
+    str.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        VertxAssert.assertEquals(2, event.events().length());
+        VertxAssert.assertEquals(2, event.events().<TextInsertedEvent>get(1).index());
+        VertxAssert.assertEquals("cde", event.events().<TextInsertedEvent>get(1).text());
+
+        VertxAssert.testComplete();
+      }
+    });
+    submitted = 0;
+    str.setText("abcdef");
+    VertxAssert.assertEquals("abcdef", str.getText());
+    VertxAssert.assertEquals(1, submitted);
+    VertxAssert.assertEquals(1, last.components.length());
+
+    // Setting the same text again submits nothing
+    str.setText("abcdef");
+    VertxAssert.assertEquals(1, submitted);
+  }
+
+  @Test
+  public void testSetTextLargeRegion() {
+    // More changed characters than CollaborativeStringImpl.MAX_DIFF_LENGTH
+    String before = "x" + text('a', 6000) + "y";
+    final String after = "x" + text('b', 6000) + "y";
+    str.setText(before);
+    str.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        // The whole changed region is replaced
+        VertxAssert.assertEquals(3, event.events().length());
+        VertxAssert.assertEquals(1, event.events().<TextDeletedEvent>get(1).index());
+        VertxAssert.assertEquals(text('a', 6000), event.events().<TextDeletedEvent>get(1).text());
+        VertxAssert.assertEquals(1, event.events().<TextInsertedEvent>get(2).index());
+        VertxAssert.assertEquals(text('b', 6000), event.events().<TextInsertedEvent>get(2).text());
+
+        VertxAssert.testComplete();
+      }
+    });
+    submitted = 0;
+    str.setText(after);
+    VertxAssert.assertEquals(after, str.getText());
+    VertxAssert.assertEquals(1, submitted);
+    VertxAssert.assertEquals(2, last.components.length());
+  }
+
+  @Test
+  public void testSetTextSurrogatePairAtPrefix() {
+    // a U+1F600 becomes a U+1F601 U+1F600: the common prefix must not end inside U+1F601
+    str.setText("a\ud83d\ude00");
+    str.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        VertxAssert.assertEquals(2, event.events().length());
+        VertxAssert.assertEquals(1, event.events().<TextInsertedEvent>get(1).index());
+        VertxAssert.assertEquals("\ud83d\ude01", event.events().<TextInsertedEvent>get(1).text());
+
+        VertxAssert.testComplete();
+      }
+    });
+    submitted = 0;
+    str.setText("a\ud83d\ude01\ud83d\ude00");
+    VertxAssert.assertEquals("a\ud83d\ude01\ud83d\ude00", str.getText());
+    VertxAssert.assertEquals(1, submitted);
+    VertxAssert.assertEquals(1, last.components.length());
+  }
+
+  @Test
+  public void testSetTextSurrogatePairAtSuffix() {
+    // ab U+1F600 cd becomes ab U+1F900 cd: both pairs end with the same low surrogate, so the
+    // common suffix must not start inside U+1F900
+    str.setText("ab\ud83d\ude00cd");
+    str.onObjectChanged(new Handler<ObjectChangedEvent>() {
+      @Override
+      public void handle(ObjectChangedEvent event) {
+        JsonArray events = event.events();
+        for (int i = 1, len = events.length(); i < len; i++) {
+          // Only the pair itself is edited
+          Object change = events.get(i);
+          int index = change instanceof TextInsertedEvent ? ((TextInsertedEvent) change).index()
+              : ((TextDeletedEvent) change).index();
+          VertxAssert.assertTrue(index >= 2 && index < 4);
+        }
+
+        VertxAssert.testComplete();
+      }
+    });
+    submitted = 0;
+    str.setText("ab\ud83e\ude00cd");
+    VertxAssert.assertEquals("ab\ud83e\ude00cd", str.getText());
+    VertxAssert.assertEquals(1, submitted);
+  }
+
+  private static String text(char c, int length) {
+    char[] chars = new char[length];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
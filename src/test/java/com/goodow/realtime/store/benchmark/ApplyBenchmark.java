@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.list.json.JsonDeleteComponent;
+import com.goodow.realtime.operation.list.json.JsonInsertComponent;
+import com.goodow.realtime.operation.list.string.StringDeleteComponent;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.operation.map.json.JsonMapComponent;
+import com.goodow.realtime.store.CollaborativeList;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.Model;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.JsonSerializer;
+import com.goodow.realtime.store.impl.MemoryStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of applying remote operations to a document without listeners. Run it with
+ * {@code -prof gc} to see the bytes allocated per operation, which applying components should keep
+ * close to the size of the values inserted.
+ *
+ * Each operation inserts then deletes the same values, so that the document doesn't grow over the
+ * iterations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApplyBenchmark {
+  /* The number of insert and delete pairs in each operation. */
+  @Param({"1", "100"})
+  public int pairs;
+
+  private DocumentBridge bridge;
+  private CollaborativeOperation listOp;
+  private CollaborativeOperation mapOp;
+  private CollaborativeOperation stringOp;
+
+  @Setup
+  public void setUp() {
+    BenchmarkPlatform.register();
+    bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    Model mod = bridge.getDocument().getModel();
+    CollaborativeMap root = mod.getRoot();
+    CollaborativeList collaborativeList = mod.createList(null);
+    CollaborativeMap collaborativeMap = mod.createMap(null);
+    CollaborativeString collaborativeString = mod.createString(null);
+    root.set("list", collaborativeList);
+    root.set("map", collaborativeMap);
+    root.set("string", collaborativeString);
+    String listId = collaborativeList.id();
+    String mapId = collaborativeMap.id();
+    String stringId = collaborativeString.id();
+
+    JsonArray values = Json.createArray().push(JsonSerializer.serializeObject("value"));
+    JsonArray list = Json.createArray();
+    JsonArray map = Json.createArray();
+    JsonArray string = Json.createArray();
+    for (int i = 0; i < pairs; i++) {
+      list.push(new JsonInsertComponent(listId, 0, values));
+      list.push(new JsonDeleteComponent(listId, 0, values));
+      String key = "key" + i;
+      map.push(new JsonMapComponent(mapId, key, null, values.getArray(0)));
+      map.push(new JsonMapComponent(mapId, key, values.getArray(0), null));
+      string.push(new StringInsertComponent(stringId, 0, "text"));
+      string.push(new StringDeleteComponent(stringId, 0, "text"));
+    }
+    listOp = new CollaborativeOperation("user", "session", list);
+    mapOp = new CollaborativeOperation("user", "session", map);
+    stringOp = new CollaborativeOperation("user", "session", string);
+  }
+
+  @Benchmark
+  public void applyListOperation() {
+    bridge.consume(listOp);
+  }
+
+  @Benchmark
+  public void applyMapOperation() {
+    bridge.consume(mapOp);
+  }
+
+  @Benchmark
+  public void applyStringOperation() {
+    bridge.consume(stringOp);
+  }
+}
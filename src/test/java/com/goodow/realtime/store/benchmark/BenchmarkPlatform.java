@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+
+/**
+ * Registers the platform the store runs on, once per benchmark JVM.
+ *
+ * The benchmarks are run with JMH from the test classpath, for instance:
+ * {@code java -cp target/test-classes:<test classpath> org.openjdk.jmh.Main ApplyBenchmark -prof gc}
+ */
+final class BenchmarkPlatform {
+  private static Vertx vertx;
+
+  static synchronized void register() {
+    if (vertx == null) {
+      vertx = VertxFactory.newVertx();
+      VertxPlatform.register(vertx);
+    }
+  }
+
+  private BenchmarkPlatform() {
+  }
+}
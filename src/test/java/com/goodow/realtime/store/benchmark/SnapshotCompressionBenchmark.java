@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.json.impl.JreJsonArray;
+import com.goodow.realtime.store.CollaborativeList;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.Model;
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.MemoryStore;
+import com.goodow.realtime.store.server.DeltaStorage;
+import com.goodow.realtime.store.server.impl.SnapshotCompression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of compressing a snapshot, as each submit does before writing it, and of
+ * inflating it, as each get of the snapshot and each submit to a document not cached does. The
+ * size of the compressed snapshot is printed once per setup, to compare with the encoded one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotCompressionBenchmark {
+  /* The number of strings and values in the document. */
+  @Param({"100", "10000"})
+  public int values;
+
+  private JsonArray snapshot;
+  private byte[] compressed;
+
+  @Setup
+  public void setUp() {
+    BenchmarkPlatform.register();
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    Model mod = bridge.getDocument().getModel();
+    CollaborativeMap root = mod.getRoot();
+    CollaborativeList list = mod.createList(null);
+    root.set("list", list);
+    for (int i = 0; i < values; i++) {
+      root.set("key" + i, "value" + i);
+      list.push(mod.createString("text " + i));
+    }
+    snapshot = new JsonArray(((JreJsonArray) bridge.toSnapshot()).toNative());
+    compressed = compress().getBinary(DeltaStorage.COMPRESSED_SNAPSHOT);
+    System.out.println(snapshot.encode().length() + " characters compressed into "
+        + compressed.length + " bytes");
+  }
+
+  @Benchmark
+  public JsonObject compress() {
+    return SnapshotCompression.compress(
+        new JsonObject().putNumber(Key.VERSION, 1).putArray(Key.SNAPSHOT, snapshot));
+  }
+
+  @Benchmark
+  public JsonArray inflate() {
+    return SnapshotCompression.snapshot(new JsonObject().putNumber(Key.VERSION, 1)
+        .putBinary(DeltaStorage.COMPRESSED_SNAPSHOT, compressed));
+  }
+}
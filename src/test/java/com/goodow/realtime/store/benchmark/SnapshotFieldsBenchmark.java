@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.json.impl.JreJsonArray;
+import com.goodow.realtime.json.impl.JreJsonObject;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.MemoryStore;
+import com.goodow.realtime.store.server.DeltaStorage;
+import com.goodow.realtime.store.server.impl.OperationProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the fields of a snapshot get cost the server: encoding the reply, which holds the
+ * snapshot, the root or both, and deriving the root from the snapshot, as a get of the root does
+ * when the storage doesn't keep it. Run it with {@code -prof gc}: the bytes allocated to encode a
+ * reply follow its length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotFieldsBenchmark {
+  /* The representations of the document the reply holds. */
+  @Param({"root", "snapshot", "both"})
+  public String fields;
+  /* The number of values in the document. */
+  @Param({"10", "1000"})
+  public int values;
+
+  private JsonObject reply;
+  private JsonObject snapshotData;
+
+  @Setup
+  public void setUp() {
+    BenchmarkPlatform.register();
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    CollaborativeMap root = bridge.getDocument().getModel().getRoot();
+    for (int i = 0; i < values; i++) {
+      root.set("key" + i, "value" + i);
+    }
+    JsonArray snapshot = new JsonArray(((JreJsonArray) bridge.toSnapshot()).toNative());
+    snapshotData = new JsonObject().putNumber(Key.VERSION, 1).putArray(Key.SNAPSHOT, snapshot);
+    reply = new JsonObject().putNumber(Key.VERSION, 1);
+    if (!DeltaStorage.ROOT.equals(fields)) {
+      reply.putArray(Key.SNAPSHOT, snapshot);
+    }
+    if (!Key.SNAPSHOT.equals(fields)) {
+      reply.putObject(DeltaStorage.ROOT,
+          new JsonObject(((JreJsonObject) bridge.toJson()).toNative()));
+    }
+  }
+
+  @Benchmark
+  public Object deriveRoot() {
+    return OperationProcessor.createSnapshot("docs", "docId", snapshotData).toJson();
+  }
+
+  @Benchmark
+  public String encodeReply() {
+    return reply.encode();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.store.channel.TransformQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of queueing local ops while waiting for an ack, with some remote ops received
+ * and not applied yet, and of receiving a remote op while local ops are queued. A local op is
+ * transformed once against each waiting remote op, then composed into the queued op: a remote op is
+ * transformed against that single queued op, however many local ops it holds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransformQueueBenchmark {
+  /* The number of remote ops received and not applied yet. */
+  @Param({"0", "10"})
+  public int serverOps;
+
+  private TransformQueue<CollaborativeOperation> queue;
+  private final CollaborativeOperation clientOp = new CollaborativeOperation("me", "mySession",
+      Json.createArray().push(new StringInsertComponent("str", 0, "a")));
+  private final CollaborativeOperation serverOp = new CollaborativeOperation("user", "session",
+      Json.createArray().push(new StringInsertComponent("str", 0, "b")));
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    BenchmarkPlatform.register();
+    queue = new TransformQueue<CollaborativeOperation>(new CollaborativeTransformer());
+    queue.init(0);
+    // Waiting for the ack of a first op
+    queue.clientOp(clientOp);
+    queue.pushQueuedOpsToUnacked();
+    for (int i = 0; i < serverOps; i++) {
+      queue.serverOp(queue.version(), serverOp);
+    }
+  }
+
+  @Benchmark
+  public void queueClientOp() {
+    queue.clientOp(clientOp);
+  }
+
+  @Benchmark
+  public void receiveServerOp() {
+    queue.clientOp(clientOp);
+    queue.serverOp(queue.version(), serverOp);
+    queue.removeServerOp();
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.benchmark;
+
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.Model;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.MemoryStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of typing a keystroke, with and without undo. The text typed never contains a
+ * whitespace, so every keystroke of an iteration is coalesced into the same undo entry: the time
+ * per keystroke should stay flat however long the iteration is, rather than grow with the entry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UndoBenchmark {
+  @Param({"false", "true"})
+  public boolean undoEnabled;
+
+  private CollaborativeString str;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    BenchmarkPlatform.register();
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    bridge.setUndoEnabled(undoEnabled);
+    Model mod = bridge.getDocument().getModel();
+    str = mod.createString(null);
+    mod.getRoot().set("str", str);
+  }
+
+  @Benchmark
+  public void typeKeystroke() {
+    str.append("x");
+  }
+}
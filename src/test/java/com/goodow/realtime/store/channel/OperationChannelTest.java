@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.channel;
+
+import com.goodow.realtime.channel.Bus;
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.impl.SimpleBus;
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Platform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.store.channel.Constants.Key;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+/**
+ * Runs a channel connected at version 1 against a fake server on a local bus, which acknowledges
+ * every op posted as applied at the version it was submitted at, after a delay, and replies to the
+ * fetches of missed ops from a history of remote ops.
+ */
+public class OperationChannelTest extends TestVerticle {
+  private Bus bus;
+  private OperationChannel<CollaborativeOperation> channel;
+  private final JsonArray posted = Json.createArray(); // ArrayList<JsonObject>, the opData posted
+  private final JsonArray history = Json.createArray(); // ArrayList<JsonObject>, from version 1
+  private final JsonArray fetches = Json.createArray(); // ArrayList<JsonObject>, the requests
+  /* The maximum number of ops the server replies to a fetch with. */
+  private int maxOpsPerFetch = Integer.MAX_VALUE;
+  /* The delay before the server replies to a post. */
+  private int replyDelayMs;
+  /* The version from which the server rejects the chained ops, as if the pipeline broke. */
+  private double rejectChainedFrom = Double.MAX_VALUE;
+  private int remoteOps;
+  private Throwable error;
+  private int lastCheckMs;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    bus = new SimpleBus();
+    bus.subscribe(Constants.Topic.STORE, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(final Message<JsonObject> message) {
+        JsonObject opData = message.body().getObject(Key.OP_DATA);
+        posted.push(opData);
+        double version = opData.getNumber(Key.VERSION);
+        final JsonObject reply = opData.has(Key.CHAINED) && version >= rejectChainedFrom
+            ? Json.createObject() : Json.createObject().set(Key.VERSION, version);
+        if (replyDelayMs == 0) {
+          message.reply(reply);
+          return;
+        }
+        Platform.scheduler().scheduleDelay(replyDelayMs, new Handler<Void>() {
+          @Override
+          public void handle(Void ignore) {
+            message.reply(reply);
+          }
+        });
+      }
+    });
+    bus.subscribe(Constants.Topic.STORE + Constants.Topic.OPS,
+        new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> message) {
+            JsonObject request = message.body();
+            fetches.push(request);
+            int from = (int) request.getNumber("from");
+            int to = Math.min((int) request.getNumber("to"), from + maxOpsPerFetch);
+            JsonArray ops = Json.createArray();
+            for (int v = from; v < to; v++) {
+              ops.push(history.get(v - 1));
+            }
+            message.reply(ops);
+          }
+        });
+    channel =
+        new OperationChannel<CollaborativeOperation>("docId", new CollaborativeTransformer(), bus,
+            new OperationChannel.Listener<CollaborativeOperation>() {
+              @Override
+              public void onAck(CollaborativeOperation serverHistoryOp, boolean clean) {
+              }
+
+              @Override
+              public void onError(Throwable e) {
+                error = e;
+              }
+
+              @Override
+              public void onRemoteOp(CollaborativeOperation serverHistoryOp) {
+                remoteOps++;
+              }
+
+              @Override
+              public void onSaveStateChanged(boolean isSaving, boolean isPending) {
+              }
+            });
+    channel.connect(1);
+
+    startTests();
+  }
+
+  @Test
+  public void testEnoughQueuedOpsAreSentWithoutWaiting() {
+    channel.setSendWindow(1000, 3);
+    channel.send(op("a"));
+    sendLater(20, "b", "c", "d");
+    checkLater(300, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        // Well before the window elapsed
+        VertxAssert.assertEquals(2, channel.sendCount());
+        VertxAssert.assertEquals(4, channel.sentOpCount());
+        VertxAssert.assertEquals(2, posted.<JsonObject> get(1).getNumber(Key.VERSION), 0);
+      }
+    });
+  }
+
+  @Test
+  public void testMissedOpsAreFetched() {
+    remoteHistory(3);
+    // Ops 1 and 2 were missed
+    publish(3);
+    checkLater(200, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(1, fetches.length());
+        VertxAssert.assertEquals(1, fetches.<JsonObject> get(0).getNumber("from"), 0);
+        VertxAssert.assertEquals(3, fetches.<JsonObject> get(0).getNumber("to"), 0);
+        VertxAssert.assertEquals(3, remoteOps);
+        VertxAssert.assertEquals(4, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testMissedOpsAreFetchedUntilTheGapIsFilled() {
+    maxOpsPerFetch = 1;
+    remoteHistory(4);
+    publish(4);
+    checkLater(200, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(3, fetches.length());
+        VertxAssert.assertEquals(3, fetches.<JsonObject> get(2).getNumber("from"), 0);
+        VertxAssert.assertEquals(4, remoteOps);
+        VertxAssert.assertEquals(5, channel.version());
+        VertxAssert.assertNull(error);
+      }
+    });
+  }
+
+  @Test
+  public void testOpsAreHeldWhileFetchingMissedOps() {
+    remoteHistory(3);
+    publish(2);
+    publish(3);
+    // Received while it is being fetched
+    publish(1);
+    checkLater(200, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(1, fetches.length());
+        VertxAssert.assertEquals(2, fetches.<JsonObject> get(0).getNumber("to"), 0);
+        VertxAssert.assertEquals(3, remoteOps);
+        VertxAssert.assertEquals(4, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testOpsAreSentOnceAckedByDefault() {
+    channel.send(op("a"));
+    sendLater(20, "b");
+    sendLater(60, "c");
+    checkLater(300, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(3, channel.sendCount());
+        VertxAssert.assertEquals(3, channel.sentOpCount());
+        VertxAssert.assertEquals(4, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testOpsAreSentOncePerWindow() {
+    channel.setSendWindow(200, 100);
+    // Sent right away, as nothing was sent before
+    channel.send(op("a"));
+    sendLater(20, "b");
+    sendLater(60, "c");
+    checkLater(150, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(1, channel.sendCount());
+      }
+    });
+    checkLater(400, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(2, channel.sendCount());
+        VertxAssert.assertEquals(3, channel.sentOpCount());
+        VertxAssert.assertEquals(3, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testPipelinedOpsAreSentWithoutWaitingForAcks() {
+    replyDelayMs = 100;
+    channel.setPipelineDepth(3);
+    channel.send(op("a"));
+    sendLater(20, "b");
+    sendLater(40, "c");
+    checkLater(80, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        // None of them is acked yet
+        VertxAssert.assertEquals(3, posted.length());
+        VertxAssert.assertFalse(posted.<JsonObject> get(0).has(Key.CHAINED));
+        for (int i = 1; i < 3; i++) {
+          JsonObject opData = posted.get(i);
+          VertxAssert.assertEquals(i, opData.getNumber(Key.CHAINED), 0);
+          VertxAssert.assertEquals(i + 1, opData.getNumber(Key.VERSION), 0);
+        }
+        VertxAssert.assertEquals(1, channel.version());
+      }
+    });
+    checkLater(400, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        VertxAssert.assertEquals(3, channel.sendCount());
+        VertxAssert.assertEquals(4, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testRejectedChainedOpsAreSentAgain() {
+    replyDelayMs = 100;
+    rejectChainedFrom = 2;
+    channel.setPipelineDepth(3);
+    channel.send(op("a"));
+    sendLater(20, "b");
+    sendLater(40, "c");
+    checkLater(400, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        // b and c are composed and sent again once a is acked, without being chained
+        VertxAssert.assertEquals(4, posted.length());
+        JsonObject resent = posted.get(3);
+        VertxAssert.assertFalse(resent.has(Key.CHAINED));
+        VertxAssert.assertEquals(2, resent.getNumber(Key.VERSION), 0);
+        VertxAssert.assertEquals(4, channel.sendCount());
+        VertxAssert.assertEquals(3, channel.sentOpCount());
+        VertxAssert.assertEquals(3, channel.version());
+      }
+    });
+  }
+
+  @Test
+  public void testTooManyMissedOpsFail() {
+    channel.setMaxCatchUpOps(2);
+    remoteHistory(4);
+    publish(4);
+    checkLater(200, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        // The document has to be reloaded
+        VertxAssert.assertNotNull(error);
+        VertxAssert.assertEquals(0, fetches.length());
+        VertxAssert.assertEquals(0, remoteOps);
+      }
+    });
+  }
+
+  /**
+   * Runs some checks after a delay. The test completes after the last of them.
+   */
+  private void checkLater(final int delayMs, final Handler<Void> checks) {
+    Platform.scheduler().scheduleDelay(delayMs, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        checks.handle(null);
+        if (delayMs >= lastCheckMs) {
+          channel.disconnect();
+          VertxAssert.testComplete();
+        }
+      }
+    });
+    lastCheckMs = Math.max(lastCheckMs, delayMs);
+  }
+
+  private CollaborativeOperation op(String text) {
+    return new CollaborativeOperation("userId", bus.getSessionId(), Json.createArray().push(
+        new StringInsertComponent("str", 0, text)));
+  }
+
+  private void publish(int version) {
+    bus.publish(Constants.Topic.STORE + "/docId" + Constants.Topic.WATCH, history.get(version - 1));
+  }
+
+  /**
+   * Fills the server history with ops from another session, from version 1.
+   */
+  private void remoteHistory(int ops) {
+    for (int v = 1; v <= ops; v++) {
+      CollaborativeOperation op = new CollaborativeOperation("otherUser", "otherSession", Json
+          .createArray().push(new StringInsertComponent("str", 0, "x")));
+      history.push(((JsonObject) op.toJson()).set(Key.VERSION, v));
+    }
+  }
+
+  private void sendLater(int delayMs, final String... texts) {
+    Platform.scheduler().scheduleDelay(delayMs, new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        for (String text : texts) {
+          channel.send(op(text));
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.channel;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.operation.impl.AbstractComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+public class TransformQueueTest extends TestVerticle {
+  private TransformQueue<CollaborativeOperation> queue;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    queue = new TransformQueue<CollaborativeOperation>(new CollaborativeTransformer());
+    queue.init(1);
+
+    startTests();
+  }
+
+  @Test
+  public void testClientOpIsTransformedAgainstEachServerOp() {
+    queue.serverOp(1, insert("user1", "session1", 0, "xy"));
+    queue.serverOp(2, insert("user2", "session2", 1, "z"));
+    queue.clientOp(insert("me", "mySession", 3, "a"));
+
+    assertInsert(6, "a", queue.pushQueuedOpsToUnacked());
+    assertInsert(0, "xy", queue.removeServerOp());
+    assertInsert(1, "z", queue.removeServerOp());
+    VertxAssert.assertFalse(queue.hasServerOp());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testPipelineBrokenByAServerOp() {
+    for (int i = 0; i < 3; i++) {
+      queue.clientOp(insert("me", "mySession", i + 1, "abc".substring(i, i + 1)));
+      queue.pushQueuedOpsToUnacked();
+    }
+    queue.clientOp(insert("me", "mySession", 4, "d"));
+    queue.serverOp(1, insert("user1", "session1", 0, "x"));
+
+    // Only the first op sent is transformed by the server, the others are sent again
+    VertxAssert.assertEquals(1, queue.unackedClientOpCount());
+    assertInsert(2, "a", queue.unackedClientOp());
+    VertxAssert.assertTrue(queue.hasQueuedClientOps());
+    assertInsert(0, "x", queue.removeServerOp());
+    queue.ackClientOp(2);
+    VertxAssert.assertEquals(3, queue.version());
+    VertxAssert.assertEquals(0, queue.unackedClientOpCount());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testQueuedClientOpsAreComposed() {
+    queue.clientOp(insert("me", "mySession", 0, "a"));
+    queue.clientOp(insert("me", "mySession", 1, "b"));
+    queue.serverOp(1, insert("user1", "session1", 5, "x"));
+    queue.clientOp(insert("me", "mySession", 2, "c"));
+
+    CollaborativeOperation op = queue.pushQueuedOpsToUnacked();
+    VertxAssert.assertEquals("mySession", op.sessionId);
+    VertxAssert.assertFalse(queue.hasQueuedClientOps());
+    // Received after the three client ops were applied locally
+    assertInsert(8, "x", queue.removeServerOp());
+    VertxAssert.assertEquals(2, queue.version());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testServerOpsKeepTheirAuthors() {
+    queue.clientOp(insert("me", "mySession", 0, "a"));
+    queue.serverOp(1, insert("user1", "session1", 0, "x"));
+    queue.serverOp(2, insert("user2", "session2", 0, "y"));
+    queue.clientOp(insert("me", "mySession", 0, "b"));
+
+    CollaborativeOperation first = queue.removeServerOp();
+    VertxAssert.assertEquals("user1", first.userId);
+    VertxAssert.assertEquals("session1", first.sessionId);
+    CollaborativeOperation second = queue.removeServerOp();
+    VertxAssert.assertEquals("user2", second.userId);
+    VertxAssert.assertEquals("session2", second.sessionId);
+
+    VertxAssert.testComplete();
+  }
+
+  private void assertInsert(int index, String text, CollaborativeOperation op) {
+    VertxAssert.assertEquals(1, op.components.length());
+    VertxAssert.assertEquals(new StringInsertComponent("str", index, text).toJson().toJsonString(),
+        op.components.<AbstractComponent<?>> get(0).toJson().toJsonString());
+  }
+
+  private static CollaborativeOperation insert(String userId, String sessionId, int index,
+      String text) {
+    return new CollaborativeOperation(userId, sessionId, Json.createArray().push(
+        new StringInsertComponent("str", index, text)));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.channel;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.store.channel.Constants.Key;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+public class VersionsTest extends TestVerticle {
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+    startTests();
+  }
+
+  @Test
+  public void testIntegralEncoding() {
+    JsonObject json = Versions.set(Json.createObject(), Key.VERSION, 3);
+    VertxAssert.assertEquals("{\"v\":3}", json.toJsonString());
+    VertxAssert.assertEquals(3, Versions.get(json, Key.VERSION));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testPastDoublePrecision() {
+    // Not representable as a double
+    long version = (1L << 53) + 1;
+    JsonObject json = Versions.set(Json.createObject(), Key.VERSION, version);
+    VertxAssert.assertEquals(version, Versions.get(json, Key.VERSION));
+    // As the server reads it
+    VertxAssert.assertEquals(version, new org.vertx.java.core.json.JsonObject(json.toJsonString())
+        .getLong(Key.VERSION).longValue());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testReadsDoubles() {
+    // As written by a GWT client, or by an older JVM client
+    JsonObject json = Json.createObject().set(Key.VERSION, 5.0);
+    VertxAssert.assertEquals(5, Versions.get(json, Key.VERSION));
+
+    VertxAssert.testComplete();
+  }
+}
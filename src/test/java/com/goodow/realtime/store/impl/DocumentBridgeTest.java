@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.store.CollaborativeList;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.Model;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+public class DocumentBridgeTest extends TestVerticle {
+  private DocumentBridge bridge;
+  private Model mod;
+  // ArrayList<CollaborativeOperation>, the operations submitted by the bridge
+  private final JsonArray submitted = Json.createArray();
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    bridge.setUndoEnabled(true);
+    mod = bridge.getDocument().getModel();
+    bridge.setOutputSink(new DocumentBridge.OutputSink() {
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public void consume(CollaborativeOperation op) {
+        submitted.push(op);
+      }
+    });
+
+    startTests();
+  }
+
+  @Test
+  public void testCompoundOperationIsUndoneAtOnce() {
+    CollaborativeMap root = mod.getRoot();
+    CollaborativeString str = mod.createString("abc");
+    root.set("str", str);
+    mod.beginCompoundOperation("edit");
+    str.append("def");
+    root.set("num", 1);
+    root.remove("str");
+    mod.endCompoundOperation();
+
+    mod.undo();
+    VertxAssert.assertEquals("abc", str.getText());
+    VertxAssert.assertSame(str, root.get("str"));
+    VertxAssert.assertFalse(root.has("num"));
+    mod.redo();
+    VertxAssert.assertEquals("abcdef", str.getText());
+    VertxAssert.assertFalse(root.has("str"));
+    VertxAssert.assertEquals(1.0, root.<Number> get("num").doubleValue(), 0);
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testExceptionInsideCompoundOperation() {
+    CollaborativeList list = mod.createList(null);
+    mod.getRoot().set("list", list);
+    submitted.clear();
+    mod.beginCompoundOperation(null);
+    try {
+      list.push("a");
+      list.insert(5, "b");
+      VertxAssert.fail();
+    } catch (ArrayIndexOutOfBoundsException e) {
+    } finally {
+      mod.endCompoundOperation();
+    }
+    // The components applied before the exception are still submitted together
+    VertxAssert.assertEquals(1, submitted.length());
+    VertxAssert.assertEquals(1, submitted.<CollaborativeOperation> get(0).components.length());
+    VertxAssert.assertEquals(1, list.length());
+
+    // Undo and redo are refused inside a compound operation, which can still be ended
+    mod.beginCompoundOperation(null);
+    try {
+      mod.undo();
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+    mod.endCompoundOperation();
+    VertxAssert.assertEquals(1, submitted.length());
+    try {
+      mod.endCompoundOperation();
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testMapBatchesAreUndoneAtOnce() {
+    CollaborativeMap root = mod.getRoot();
+    root.set("k1", "v1");
+    submitted.clear();
+    root.setAll(Json.createObject().set("k1", "new").set("k2", "v2").set("k3", "v3"));
+    VertxAssert.assertEquals(1, submitted.length());
+    // Nothing changes, so nothing is submitted
+    root.setAll(Json.createObject().set("k2", "v2"));
+    VertxAssert.assertEquals(1, submitted.length());
+    root.removeAll(Json.createArray().push("k1").push("k2"));
+    VertxAssert.assertEquals(2, submitted.length());
+    root.clear();
+    VertxAssert.assertEquals(3, submitted.length());
+    VertxAssert.assertEquals(0, root.size());
+
+    mod.undo();
+    VertxAssert.assertEquals("v3", root.get("k3"));
+    VertxAssert.assertEquals(1, root.size());
+    mod.undo();
+    VertxAssert.assertEquals("new", root.get("k1"));
+    VertxAssert.assertEquals("v2", root.get("k2"));
+    mod.undo();
+    VertxAssert.assertEquals("v1", root.get("k1"));
+    VertxAssert.assertEquals(1, root.size());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testNestedCompoundOperations() {
+    CollaborativeString str = mod.createString(null);
+    mod.getRoot().set("str", str);
+    submitted.clear();
+    mod.beginCompoundOperation("outer");
+    str.append("a");
+    mod.beginCompoundOperation("inner");
+    str.append("b");
+    mod.endCompoundOperation();
+    VertxAssert.assertEquals(0, submitted.length());
+    str.append("c");
+    mod.endCompoundOperation();
+
+    VertxAssert.assertEquals(1, submitted.length());
+    VertxAssert.assertEquals(3, submitted.<CollaborativeOperation> get(0).components.length());
+    mod.undo();
+    VertxAssert.assertEquals("", str.getText());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testRemoteOperationDuringCompoundOperation() {
+    CollaborativeString str = mod.createString("abc");
+    mod.getRoot().set("str", str);
+    // Another replica of the document, only updated by the operations it is given
+    DocumentBridge mirror = new DocumentBridge(new MemoryStore(), "docId", bridge.toSnapshot(),
+        null, null);
+    submitted.clear();
+
+    mod.beginCompoundOperation(null);
+    str.insertString(0, "xy");
+    // Built against "abc": the remote session hasn't seen "xy" yet
+    CollaborativeOperation remote = new CollaborativeOperation("remoteUser", "remoteSession",
+        Json.createArray().push(new StringInsertComponent(str.id(), 3, "Z")));
+    bridge.consume(remote);
+    VertxAssert.assertEquals("xyabcZ", str.getText());
+    str.append("!");
+    mod.endCompoundOperation();
+    VertxAssert.assertEquals("xyabcZ!", str.getText());
+
+    // The submitted operation applies on top of the remote one, as on the server
+    mirror.consume(remote);
+    mirror.consume(submitted.<CollaborativeOperation> get(0));
+    VertxAssert.assertEquals(bridge.toJson().toJsonString(), mirror.toJson().toJsonString());
+
+    VertxAssert.testComplete();
+  }
+}
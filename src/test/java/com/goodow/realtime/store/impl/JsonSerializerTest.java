@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+public class JsonSerializerTest extends TestVerticle {
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    startTests();
+  }
+
+  @Test
+  public void testSizeOfContainers() {
+    VertxAssert.assertEquals(2, JsonSerializer.sizeOf(Json.createArray()));
+    VertxAssert.assertEquals(2, JsonSerializer.sizeOf(Json.createObject()));
+    // [1,"a",null]
+    JsonArray array = Json.createArray().push(1).push("a").push(null);
+    VertxAssert.assertEquals(12, JsonSerializer.sizeOf(array));
+    // {"a":true,"bc":[1.5]}
+    JsonObject object = Json.createObject().set("a", true).set("bc", Json.createArray().push(1.5));
+    VertxAssert.assertEquals(21, JsonSerializer.sizeOf(object));
+    // [[21,"v"]]
+    VertxAssert.assertEquals(10, JsonSerializer.sizeOf(Json.createArray().push(
+        JsonSerializer.serializeObject("v"))));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSizeOfNumbers() {
+    VertxAssert.assertEquals(1, JsonSerializer.sizeOf(0));
+    VertxAssert.assertEquals(2, JsonSerializer.sizeOf(10));
+    VertxAssert.assertEquals(3, JsonSerializer.sizeOf(-12));
+    VertxAssert.assertEquals(3, JsonSerializer.sizeOf(1.5));
+    VertxAssert.assertEquals(String.valueOf(1e20).length(), JsonSerializer.sizeOf(1e20));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSizeOfScalars() {
+    VertxAssert.assertEquals(4, JsonSerializer.sizeOf(null));
+    VertxAssert.assertEquals(4, JsonSerializer.sizeOf(true));
+    VertxAssert.assertEquals(5, JsonSerializer.sizeOf(false));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSizeOfStrings() {
+    VertxAssert.assertEquals(2, JsonSerializer.sizeOf(""));
+    VertxAssert.assertEquals(5, JsonSerializer.sizeOf("abc"));
+    // "a\"b\\"
+    VertxAssert.assertEquals(8, JsonSerializer.sizeOf("a\"b\\"));
+    // "\n\t"
+    VertxAssert.assertEquals(6, JsonSerializer.sizeOf("\n\t"));
+    // "\u0001"
+    VertxAssert.assertEquals(8, JsonSerializer.sizeOf("\u0001"));
+    // Non ASCII characters are counted once, as they are not escaped
+    VertxAssert.assertEquals(4, JsonSerializer.sizeOf("\u00e9\u4e2d"));
+
+    VertxAssert.testComplete();
+  }
+}
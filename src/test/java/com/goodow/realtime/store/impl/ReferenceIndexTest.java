@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.operation.list.AbstractListComponent;
+import com.goodow.realtime.operation.list.string.StringDeleteComponent;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.EventType;
+import com.goodow.realtime.store.IndexReference;
+import com.goodow.realtime.store.Model;
+import com.goodow.realtime.store.ReferenceShiftedEvent;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the indexes kept by {@link ReferenceIndex} against a plain list of references, each
+ * transformed one by one.
+ */
+public class ReferenceIndexTest extends TestVerticle {
+  private Model mod;
+  private CollaborativeString str;
+  private final List<IndexReference> refs = new ArrayList<IndexReference>();
+  private final List<Integer> expected = new ArrayList<Integer>();
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    mod = bridge.getDocument().getModel();
+    str = mod.createString("0123456789012345678901234567890123456789");
+    mod.getRoot().set("str", str);
+
+    startTests();
+  }
+
+  @Test
+  public void testManyReferencesAtTheSameIndex() {
+    for (int i = 0; i < 100; i++) {
+      register(10, i % 2 == 0);
+    }
+    for (int i = 0; i < 50; i++) {
+      register(i % 3 == 0 ? 5 : 15, i % 2 == 0);
+    }
+    check();
+    insert(10, "abc");
+    check();
+    delete(8, 12);
+    check();
+    for (int i = refs.size() - 1; i >= 0; i -= 2) {
+      dispose(i);
+    }
+    check();
+    delete(0, 20);
+    check();
+    for (int i = 0; i < 200; i++) {
+      register(i % str.length(), false);
+    }
+    check();
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testRandomEdits() {
+    randomEdits(new Random(42), 2000);
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testRandomEditsWithListeners() {
+    // Reference shifted events are built for every shifted reference once a listener exists
+    mod.getRoot().addEventListener(EventType.REFERENCE_SHIFTED,
+        new Handler<ReferenceShiftedEvent>() {
+          @Override
+          public void handle(ReferenceShiftedEvent event) {
+          }
+        }, true);
+    randomEdits(new Random(7), 2000);
+
+    VertxAssert.testComplete();
+  }
+
+  private void check() {
+    for (int i = 0, len = refs.size(); i < len; i++) {
+      VertxAssert.assertEquals("Reference " + i, expected.get(i).intValue(), refs.get(i).index());
+    }
+  }
+
+  private void delete(int startIndex, int endIndex) {
+    String text = str.getText().substring(startIndex, endIndex);
+    str.removeRange(startIndex, endIndex);
+    transform(new StringDeleteComponent(str.id(), startIndex, text));
+  }
+
+  private void dispose(int i) {
+    refs.get(i).dispose();
+    expected.set(i, -1);
+  }
+
+  private void insert(int index, String text) {
+    str.insertString(index, text);
+    transform(new StringInsertComponent(str.id(), index, text));
+  }
+
+  private void randomEdits(Random random, int steps) {
+    for (int step = 0; step < steps; step++) {
+      int action = random.nextInt(10);
+      int length = str.length();
+      if (action < 3 || refs.isEmpty()) {
+        register(random.nextInt(length), random.nextBoolean());
+      } else if (action < 4) {
+        dispose(random.nextInt(refs.size()));
+      } else if (action < 5) {
+        int i = random.nextInt(refs.size());
+        if (expected.get(i) != -1) {
+          int index = random.nextInt(length);
+          refs.get(i).setIndex(index);
+          expected.set(i, index);
+        }
+      } else if (action < 8 || length < 10) {
+        insert(random.nextInt(length + 1), "abcde".substring(0, 1 + random.nextInt(5)));
+      } else {
+        int startIndex = random.nextInt(length);
+        delete(startIndex, Math.min(length, startIndex + 1 + random.nextInt(4)));
+      }
+      check();
+    }
+  }
+
+  private void register(int index, boolean canBeDeleted) {
+    refs.add(str.registerReference(index, canBeDeleted));
+    expected.add(index);
+  }
+
+  /**
+   * Transforms the expected indexes one by one, as the references would be without the index.
+   */
+  private void transform(AbstractListComponent<?> op) {
+    for (int i = 0, len = refs.size(); i < len; i++) {
+      int index = expected.get(i);
+      if (index != -1) {
+        expected.set(i, op.transformIndexReference(index, true, refs.get(i).canBeDeleted()));
+      }
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.impl;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.operation.Transformer;
+import com.goodow.realtime.operation.impl.AbstractComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.list.json.JsonDeleteComponent;
+import com.goodow.realtime.operation.list.json.JsonInsertComponent;
+import com.goodow.realtime.operation.list.string.StringInsertComponent;
+import com.goodow.realtime.operation.util.Pair;
+import com.goodow.realtime.store.CollaborativeList;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.Model;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class UndoStackTest extends TestVerticle {
+  /**
+   * An undo history transforming every remote operation through both stacks as it arrives.
+   */
+  private static class EagerUndo {
+    final Transformer<CollaborativeOperation> transformer = new CollaborativeTransformer();
+    final List<CollaborativeOperation> undoStack = new ArrayList<CollaborativeOperation>();
+    final List<CollaborativeOperation> redoStack = new ArrayList<CollaborativeOperation>();
+
+    void nonUndoableOp(CollaborativeOperation op) {
+      transform(undoStack, op);
+      transform(redoStack, op);
+    }
+
+    CollaborativeOperation redo() {
+      return move(redoStack, undoStack);
+    }
+
+    CollaborativeOperation undo() {
+      return move(undoStack, redoStack);
+    }
+
+    void undoableOp(CollaborativeOperation op) {
+      redoStack.clear();
+      undoStack.add(op.invert());
+    }
+
+    private CollaborativeOperation move(List<CollaborativeOperation> from,
+        List<CollaborativeOperation> to) {
+      if (from.isEmpty()) {
+        return null;
+      }
+      CollaborativeOperation op = from.remove(from.size() - 1);
+      to.add(op.invert());
+      return op;
+    }
+
+    private void transform(List<CollaborativeOperation> stack, CollaborativeOperation op) {
+      for (int i = stack.size() - 1; i >= 0; i--) {
+        Pair<CollaborativeOperation, CollaborativeOperation> pair =
+            transformer.transform(stack.get(i), op);
+        op = pair.second;
+        if (pair.first.components.length() == 0) {
+          stack.remove(i);
+        } else {
+          stack.set(i, pair.first);
+        }
+      }
+    }
+  }
+
+  private DocumentBridge bridge;
+  private Model mod;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    bridge.setUndoEnabled(true);
+    mod = bridge.getDocument().getModel();
+
+    startTests();
+  }
+
+  @Test
+  public void testDeletesAreCoalesced() {
+    CollaborativeString str = mod.createString("abcdefgh");
+    mod.getRoot().set("str", str);
+    // Backspaces
+    str.removeRange(7, 8);
+    str.removeRange(6, 7);
+    str.removeRange(5, 6);
+    // Deleting elsewhere starts a new entry, which forward deletes extend
+    str.removeRange(1, 2);
+    str.removeRange(1, 2);
+    VertxAssert.assertEquals("ade", str.getText());
+
+    mod.undo();
+    VertxAssert.assertEquals("abcde", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("abcdefgh", str.getText());
+    mod.redo();
+    VertxAssert.assertEquals("abcde", str.getText());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testLazyTransformMatchesEagerTransform() {
+    mod.getRoot().set("list", mod.createList(Json.createArray().push("a").push("b").push("c")));
+    JsonArray snapshot = bridge.toSnapshot();
+    DocumentBridge lazyReplica =
+        new DocumentBridge(new MemoryStore(), "docId", snapshot, null, null);
+    DocumentBridge eagerReplica =
+        new DocumentBridge(new MemoryStore(), "docId", snapshot, null, null);
+    final CollaborativeOperation[] submitted = new CollaborativeOperation[1];
+    lazyReplica.setOutputSink(new DocumentBridge.OutputSink() {
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public void consume(CollaborativeOperation op) {
+        submitted[0] = op;
+      }
+    });
+    CollaborativeList list = lazyReplica.getDocument().getModel().getRoot().get("list");
+    UndoStack lazy = new UndoStack();
+    EagerUndo eager = new EagerUndo();
+
+    // Few enough local edits for the history never to be trimmed
+    Random random = new Random(3);
+    for (int step = 0; step < 200; step++) {
+      int action = random.nextInt(10);
+      int length = list.length();
+      if (action < 3) {
+        // A local edit
+        if (length == 0 || random.nextBoolean()) {
+          list.insert(random.nextInt(length + 1), "local" + step);
+        } else {
+          list.remove(random.nextInt(length));
+        }
+        eagerReplica.consume(submitted[0]);
+        lazy.checkpoint();
+        lazy.undoableOp(submitted[0]);
+        eager.undoableOp(submitted[0]);
+      } else if (action < 7) {
+        // A remote edit, which may delete what the entries would restore
+        AbstractComponent<?> component;
+        if (length == 0 || random.nextBoolean()) {
+          component = new JsonInsertComponent(list.id(), random.nextInt(length + 1), Json
+              .createArray().push(JsonSerializer.serializeObject("remote" + step)));
+        } else {
+          int index = random.nextInt(length);
+          component = new JsonDeleteComponent(list.id(), index, Json.createArray().push(
+              JsonSerializer.serializeObject(list.<String> get(index))));
+        }
+        CollaborativeOperation op =
+            new CollaborativeOperation("remoteUser", "remoteSession", Json.createArray().push(
+                component));
+        lazyReplica.consume(op);
+        eagerReplica.consume(op);
+        lazy.nonUndoableOp(op);
+        eager.nonUndoableOp(op);
+      } else {
+        boolean undo = action < 9;
+        CollaborativeOperation lazyOp = undo ? lazy.undo() : lazy.redo();
+        CollaborativeOperation eagerOp = undo ? eager.undo() : eager.redo();
+        VertxAssert.assertEquals("Step " + step, eagerOp == null, lazyOp == null);
+        if (lazyOp != null) {
+          lazyReplica.consume(lazyOp);
+          eagerReplica.consume(eagerOp);
+        }
+      }
+      VertxAssert.assertEquals("Step " + step, eagerReplica.toJson().toJsonString(), lazyReplica
+          .toJson().toJsonString());
+      // Entries doing nothing anymore are only dropped when used
+      VertxAssert.assertTrue(eager.undoStack.isEmpty() || lazy.canUndo());
+      VertxAssert.assertTrue(eager.redoStack.isEmpty() || lazy.canRedo());
+    }
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testMaxBytes() {
+    CollaborativeList list = mod.createList(null);
+    mod.getRoot().set("list", list);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100 * 1024; i++) {
+      text.append('x');
+    }
+    // Each entry is estimated at a bit more than 100 KiB: only the last 5 fit in 512 KiB
+    for (int i = 0; i < 10; i++) {
+      list.push(text.toString());
+    }
+    VertxAssert.assertEquals(5, undoAll());
+    VertxAssert.assertEquals(5, list.length());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testMaxEntries() {
+    CollaborativeMap root = mod.getRoot();
+    int count = UndoStack.MAX_ENTRIES + 20;
+    for (int i = 0; i < count; i++) {
+      root.set("key", i);
+    }
+    VertxAssert.assertEquals(UndoStack.MAX_ENTRIES, undoAll());
+    VertxAssert.assertEquals(19, root.<Number> get("key").intValue());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testNonAdjacentEditsAreNotCoalesced() {
+    CollaborativeString str = mod.createString("abc");
+    mod.getRoot().set("str", str);
+    str.append("d");
+    str.insertString(0, "x");
+    str.append("e");
+    VertxAssert.assertEquals("xabcde", str.getText());
+
+    mod.undo();
+    VertxAssert.assertEquals("xabcd", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("abcd", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("abc", str.getText());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testTypingIsCoalescedByWord() {
+    CollaborativeString str = mod.createString(null);
+    mod.getRoot().set("str", str);
+    type(str, "hello big world");
+
+    mod.undo();
+    VertxAssert.assertEquals("hello big ", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("hello ", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("", str.getText());
+    mod.redo();
+    mod.redo();
+    VertxAssert.assertEquals("hello big ", str.getText());
+    mod.redo();
+    VertxAssert.assertEquals("hello big world", str.getText());
+    VertxAssert.assertFalse(mod.canRedo());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testUndoRedoAfterRemoteOperations() {
+    CollaborativeString str = mod.createString("abc");
+    mod.getRoot().set("str", str);
+    type(str, "XY");
+    remoteInsert(str, 0, "Z");
+    remoteInsert(str, 6, "!");
+    VertxAssert.assertEquals("ZabcXY!", str.getText());
+
+    mod.undo();
+    VertxAssert.assertEquals("Zabc!", str.getText());
+    remoteInsert(str, 0, "W");
+    mod.redo();
+    VertxAssert.assertEquals("WZabcXY!", str.getText());
+    mod.undo();
+    VertxAssert.assertEquals("WZabc!", str.getText());
+
+    VertxAssert.testComplete();
+  }
+
+  private void remoteInsert(CollaborativeString str, int index, String text) {
+    bridge.consume(new CollaborativeOperation("remoteUser", "remoteSession", Json.createArray()
+        .push(new StringInsertComponent(str.id(), index, text))));
+  }
+
+  private void type(CollaborativeString str, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      str.append(text.substring(i, i + 1));
+    }
+  }
+
+  /**
+   * @return the number of undo levels.
+   */
+  private int undoAll() {
+    int levels = 0;
+    while (mod.canUndo()) {
+      mod.undo();
+      levels++;
+    }
+    return levels;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.http.HttpServerResponse;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChunkedJsonWriterTest extends TestVerticle {
+  /**
+   * A response recording the chunks written to it. Its write queue is full once it holds
+   * maxQueuedChars characters, until {@link #drain} is called.
+   */
+  private static class FakeResponse implements InvocationHandler {
+    final HttpServerResponse resp = (HttpServerResponse) Proxy.newProxyInstance(
+        HttpServerResponse.class.getClassLoader(), new Class<?>[] {HttpServerResponse.class}, this);
+    final List<String> chunks = new ArrayList<String>();
+    int maxQueuedChars = Integer.MAX_VALUE;
+    int queuedChars;
+    Handler<Void> drainHandler;
+    boolean isChunked;
+    boolean isEnded;
+
+    String body() {
+      StringBuilder body = new StringBuilder();
+      for (String chunk : chunks) {
+        body.append(chunk);
+      }
+      return body.toString();
+    }
+
+    void drain() {
+      queuedChars = 0;
+      Handler<Void> handler = drainHandler;
+      drainHandler = null;
+      handler.handle(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("write".equals(name) && args.length == 1 && args[0] instanceof String) {
+        VertxAssert.assertTrue(isChunked);
+        VertxAssert.assertFalse(isEnded);
+        chunks.add((String) args[0]);
+        queuedChars += ((String) args[0]).length();
+      } else if ("writeQueueFull".equals(name)) {
+        return queuedChars >= maxQueuedChars;
+      } else if ("drainHandler".equals(name)) {
+        drainHandler = (Handler<Void>) args[0];
+      } else if ("setChunked".equals(name)) {
+        isChunked = (Boolean) args[0];
+      } else if ("end".equals(name) && (args == null || args.length == 0)) {
+        isEnded = true;
+      } else {
+        throw new UnsupportedOperationException(name);
+      }
+      return method.getReturnType().isInstance(proxy) ? proxy : null;
+    }
+  }
+
+  private FakeResponse fake;
+
+  @Override
+  public void start() {
+    initialize();
+    fake = new FakeResponse();
+    startTests();
+  }
+
+  @Test
+  public void testChunksOfAboutChunkSize() {
+    // 1 KiB elements
+    JsonArray ops = ops(200, 1024);
+    new ChunkedJsonWriter(fake.resp).write(new JsonObject().putNumber("v", 1)
+        .putArray("ops", ops));
+
+    VertxAssert.assertTrue(fake.isEnded);
+    VertxAssert.assertEquals(4, fake.chunks.size());
+    for (int i = 0; i < fake.chunks.size() - 1; i++) {
+      int length = fake.chunks.get(i).length();
+      VertxAssert.assertTrue("Chunk " + i + ": " + length, length >= ChunkedJsonWriter.CHUNK_SIZE
+          && length < ChunkedJsonWriter.CHUNK_SIZE + 1100);
+    }
+    VertxAssert.assertEquals(new JsonObject().putNumber("v", 1).putArray("ops", ops).encode(),
+        fake.body());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testEmptyArrays() {
+    // Each followed by another field
+    JsonObject object = new JsonObject().putArray("ops", new JsonArray())
+        .putArray("more", new JsonArray()).putNumber("v", 0);
+    new ChunkedJsonWriter(fake.resp).write(object);
+    VertxAssert.assertEquals(object.encode(), fake.body());
+    VertxAssert.assertTrue(fake.isEnded);
+
+    fake = new FakeResponse();
+    new ChunkedJsonWriter(fake.resp).write(new JsonArray());
+    VertxAssert.assertEquals("[]", fake.body());
+    VertxAssert.assertTrue(fake.isEnded);
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testPausesWhileWriteQueueIsFull() {
+    fake.maxQueuedChars = ChunkedJsonWriter.CHUNK_SIZE;
+    JsonArray ops = ops(200, 1024);
+    new ChunkedJsonWriter(fake.resp).write(ops);
+
+    int drains = 0;
+    while (!fake.isEnded) {
+      // Nothing more is written until the queue drains
+      VertxAssert.assertNotNull(fake.drainHandler);
+      VertxAssert.assertEquals(drains + 1, fake.chunks.size());
+      fake.drain();
+      drains++;
+    }
+    VertxAssert.assertEquals(3, drains);
+    VertxAssert.assertEquals(ops.encode(), fake.body());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testStringsAreEscaped() {
+    String text = "quote \" backslash \\ slash / newline \n tab \t nul \u0000 unicode \u00e9\u4e2d"
+        + " surrogates \ud83d\ude00 separators \u2028\u2029";
+    JsonObject object = new JsonObject().putString(text, text)
+        .putArray("ops", new JsonArray().addString(text).addObject(
+            new JsonObject().putString(text, text)).addArray(new JsonArray().addString(text)))
+        .putObject("root", new JsonObject().putString("key", text));
+    new ChunkedJsonWriter(fake.resp).write(object);
+
+    VertxAssert.assertEquals(object.encode(), fake.body());
+    JsonObject parsed = new JsonObject(fake.body());
+    VertxAssert.assertEquals(text, parsed.getString(text));
+    VertxAssert.assertEquals(text, parsed.getArray("ops").get(0));
+    VertxAssert.assertEquals(text, parsed.getObject("root").getString("key"));
+
+    VertxAssert.testComplete();
+  }
+
+  /**
+   * @param length the number of characters of each op once encoded.
+   */
+  private static JsonArray ops(int count, int length) {
+    JsonArray ops = new JsonArray();
+    for (int i = 0; i < count; i++) {
+      StringBuilder text = new StringBuilder();
+      // {"v":i,"text":""}
+      for (int j = String.valueOf(i).length() + 16; j < length; j++) {
+        text.append('x');
+      }
+      ops.addObject(new JsonObject().putNumber("v", i).putString("text", text.toString()));
+    }
+    return ops;
+  }
+}
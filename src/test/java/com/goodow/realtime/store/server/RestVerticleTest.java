@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server;
+
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.channel.Constants.Topic;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.http.HttpClient;
+import org.vertx.java.core.http.HttpClientRequest;
+import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+/**
+ * Sends conditional GETs to the REST API, backed by a fake store holding the document docs/doc at
+ * version 3, and no other document.
+ */
+public class RestVerticleTest extends TestVerticle {
+  private static final int PORT = 1988;
+  private static final long VERSION = 3;
+  private HttpClient client;
+  /* The number of gets which reached the store. */
+  private int fetches;
+
+  @Override
+  public void start() {
+    initialize();
+
+    vertx.eventBus().registerHandler(Topic.STORE, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        JsonObject body = message.body();
+        boolean exists = "docs/doc".equals(body.getString(Key.ID));
+        if ("head".equals(body.getString("action"))) {
+          message.reply(exists ? VERSION : 0L);
+          return;
+        }
+        fetches++;
+        if (!exists) {
+          message.reply(new JsonObject());
+          return;
+        }
+        message.reply(new JsonObject().putNumber(Key.VERSION,
+            body.containsField(Key.VERSION) ? body.getLong(Key.VERSION) : VERSION)
+            .putObject(DeltaStorage.ROOT, new JsonObject().putString("title", "hello"))
+            .putArray(Key.COLLABORATORS, new JsonArray().addObject(
+                new JsonObject().putString(Key.SESSION_ID, "session"))));
+      }
+    });
+    client = vertx.createHttpClient().setPort(PORT);
+    JsonObject rest = new JsonObject().putNumber("port", PORT);
+    container.deployVerticle(RestVerticle.class.getName(),
+        new JsonObject().putObject("rest", rest), new AsyncResultHandler<String>() {
+          @Override
+          public void handle(AsyncResult<String> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            startTests();
+          }
+        });
+  }
+
+  @Test
+  public void testCurrentVersionIsNotModified() {
+    get("/store/docs/doc", "\"3\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        assertNotModified("\"3\"", resp);
+      }
+    });
+  }
+
+  @Test
+  public void testFieldsAreInTheEtag() {
+    get("/store/docs/doc?fields=root", "\"3\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        assertFetched(3, "\"3-root\"", resp);
+      }
+    });
+  }
+
+  @Test
+  public void testMissingDocumentIsFetched() {
+    get("/store/docs/missing?v=1", "\"1\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        VertxAssert.assertEquals(200, resp.statusCode());
+        VertxAssert.assertNull(resp.headers().get("ETag"));
+        VertxAssert.assertEquals(1, fetches);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testMissingVersionIsFetched() {
+    get("/store/docs/doc?v=4", "\"4\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        // Not there yet, so it is up to the store to answer
+        VertxAssert.assertEquals(200, resp.statusCode());
+        VertxAssert.assertEquals(1, fetches);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testPastVersionIsNotModified() {
+    get("/store/docs/doc?v=2&fields=root", "\"2-root\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        assertNotModified("\"2-root\"", resp);
+      }
+    });
+  }
+
+  @Test
+  public void testStaleVersionIsFetched() {
+    get("/store/docs/doc", "\"2\"", new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        assertFetched(3, "\"3\"", resp);
+      }
+    });
+  }
+
+  @Test
+  public void testUnknownFieldsAreNotInTheEtag() {
+    get("/store/docs/doc?fields=%22%0D%0A", null, new Handler<HttpClientResponse>() {
+      @Override
+      public void handle(HttpClientResponse resp) {
+        // Rendered with both the root and the snapshot, as without any fields
+        assertFetched(3, "\"3\"", resp);
+      }
+    });
+  }
+
+  private void assertFetched(final long version, String etag, HttpClientResponse resp) {
+    VertxAssert.assertEquals(200, resp.statusCode());
+    VertxAssert.assertEquals(etag, resp.headers().get("ETag"));
+    resp.bodyHandler(new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer body) {
+        JsonObject snapshotData = new JsonObject(body.toString());
+        VertxAssert.assertEquals(version, snapshotData.getLong(Key.VERSION).longValue());
+        // They may change at the same version
+        VertxAssert.assertFalse(snapshotData.containsField(Key.COLLABORATORS));
+        VertxAssert.assertEquals(1, fetches);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  private void assertNotModified(String etag, HttpClientResponse resp) {
+    VertxAssert.assertEquals(304, resp.statusCode());
+    VertxAssert.assertEquals(etag, resp.headers().get("ETag"));
+    // Answered from the version alone
+    VertxAssert.assertEquals(0, fetches);
+    VertxAssert.testComplete();
+  }
+
+  private void get(String uri, String ifNoneMatch, Handler<HttpClientResponse> handler) {
+    HttpClientRequest req = client.get(uri, handler);
+    if (ifNoneMatch != null) {
+      req.headers().set("If-None-Match", ifNoneMatch);
+    }
+    req.end();
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.operation.OperationComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.list.json.JsonInsertComponent;
+import com.goodow.realtime.operation.map.json.JsonMapComponent;
+import com.goodow.realtime.store.CollaborativeList;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.CollaborativeString;
+import com.goodow.realtime.store.IndexReference;
+import com.goodow.realtime.store.Model;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.JsonSerializer;
+import com.goodow.realtime.store.impl.MemoryStore;
+
+import org.junit.Test;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.util.Map;
+
+public class HeadlessDocumentTest extends TestVerticle {
+  private DocumentBridge bridge;
+  private HeadlessDocument headless;
+  private CollaborativeOperation last;
+  private Model mod;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    bridge = new DocumentBridge(new MemoryStore(), "docId", null, null, null);
+    bridge.createRoot();
+    mod = bridge.getDocument().getModel();
+    headless = new HeadlessDocument(bridge.toSnapshot());
+    // Every local operation of the bridge is also consumed by the headless document
+    bridge.setOutputSink(new DocumentBridge.OutputSink() {
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public void consume(CollaborativeOperation op) {
+        headless.consume(op);
+        last = op;
+      }
+    });
+
+    startTests();
+  }
+
+  @Test
+  public void testCollectGarbage() {
+    CollaborativeMap root = mod.getRoot();
+    CollaborativeList detached = mod.createList(null);
+    root.set("list", detached);
+    detached.push(mod.createMap(null));
+    detached.registerReference(0, false);
+    CollaborativeString str = mod.createString("text");
+    root.set("str", str);
+    IndexReference cursor = str.registerReference(1, false);
+    // Only reachable through a reference held by the root
+    CollaborativeString pointed = mod.createString("pointed");
+    root.set("ref", pointed.registerReference(2, false));
+    root.remove("list");
+
+    double bytesUsed = headless.bytesUsed();
+    double detachedBytes = headless.bytesUsed(detached.id());
+    JsonObject stats = headless.collectGarbage();
+    // The list, the map it holds and the reference into it
+    VertxAssert.assertEquals(3, stats.getNumber("objects"), 0);
+    VertxAssert.assertTrue(stats.getNumber("bytes") > detachedBytes);
+    VertxAssert.assertEquals(bytesUsed - stats.getNumber("bytes"), headless.bytesUsed(), 0);
+    VertxAssert.assertEquals(-1, headless.bytesUsed(detached.id()), 0);
+    VertxAssert.assertTrue(headless.bytesUsed(cursor.id()) > 0);
+    VertxAssert.assertTrue(headless.bytesUsed(pointed.id()) > 0);
+    VertxAssert.assertEquals(bridge.toJson().toJsonString(), headless.toJson().toJsonString());
+    HeadlessDocument restored = new HeadlessDocument(headless.toSnapshot());
+    VertxAssert.assertEquals(headless.toSnapshot().toJsonString(),
+        restored.toSnapshot().toJsonString());
+    VertxAssert.assertEquals(0, headless.collectGarbage().getNumber("objects"), 0);
+
+    // Reachable objects can still be edited, but a dropped one can't
+    str.insertString(0, "a");
+    try {
+      headless.consume(operation(new JsonInsertComponent(detached.id(), 0, Json.createArray())));
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testDanglingReferenceRejected() {
+    JsonMapComponent set = new JsonMapComponent("root", "key", null,
+        Json.createArray().push(JsonSerializer.REFERENCE_TYPE).push("missing"));
+    try {
+      headless.consume(operation(set));
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+    JsonInsertComponent insert = new JsonInsertComponent("missing", 0, Json.createArray());
+    try {
+      headless.consume(operation(insert));
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+    VertxAssert.assertFalse(headless.toJson().has("key"));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testDisposeSessionReferences() {
+    CollaborativeString str = mod.createString("0123456789");
+    mod.getRoot().set("str", str);
+    IndexReference ref = str.registerReference(3, false);
+    String sessionId = last.sessionId;
+    VertxAssert.assertNotNull(sessionId);
+    IndexReference deleted = str.registerReference(5, true);
+    str.removeRange(4, 7);
+    VertxAssert.assertEquals(-1, deleted.index());
+
+    // Only the live references are tracked, and their sessions survive a reload
+    Map<String, String> sessions = headless.referenceSessions();
+    VertxAssert.assertEquals(1, sessions.size());
+    VertxAssert.assertEquals(sessionId, sessions.get(ref.id()));
+    HeadlessDocument restored = new HeadlessDocument(headless.toSnapshot());
+    for (Map.Entry<String, String> entry : sessions.entrySet()) {
+      restored.setReferenceSession(entry.getKey(), entry.getValue());
+    }
+    VertxAssert.assertNull(restored.disposeReferences("otherSession"));
+
+    CollaborativeOperation dispose = restored.disposeReferences(sessionId);
+    VertxAssert.assertEquals(1, dispose.components.length());
+    VertxAssert.assertEquals(HeadlessDocument.SERVER_ID, dispose.sessionId);
+    restored.consume(dispose);
+    headless.consume(dispose);
+    bridge.consume(dispose);
+    VertxAssert.assertEquals(-1, ref.index());
+    assertSameDocument();
+    VertxAssert.assertEquals(restored.toSnapshot().toJsonString(),
+        headless.toSnapshot().toJsonString());
+    VertxAssert.assertNull(headless.disposeReferences(sessionId));
+    VertxAssert.assertTrue(headless.referenceSessions().isEmpty());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testListEdits() {
+    CollaborativeList list = mod.createList(Json.createArray().push(1).push(2).push(3));
+    mod.getRoot().set("list", list);
+    list.push(mod.createString("abc"));
+    list.insert(0, "first");
+    list.set(1, true);
+    list.remove(2);
+    list.move(0, 3, 1);
+    list.replaceRange(0, Json.createArray().push(Json.createObject().set("k", "v")));
+    assertSameDocument();
+
+    list.clear();
+    assertSameDocument();
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testMapEdits() {
+    CollaborativeMap root = mod.getRoot();
+    root.set("num", 1.5);
+    root.set("str", mod.createString("text"));
+    CollaborativeMap map = mod.createMap(Json.createObject().set("a", 1).set("b", "2"));
+    root.set("map", map);
+    map.set("a", null);
+    map.set("b", mod.createList(Json.createArray().push("nested")));
+    root.remove("num");
+    root.set("str", "plain");
+    assertSameDocument();
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testReferences() {
+    CollaborativeString str = mod.createString("0123456789");
+    mod.getRoot().set("str", str);
+    IndexReference ref = str.registerReference(3, false);
+    IndexReference deletable = str.registerReference(5, true);
+    mod.getRoot().set("ref", ref);
+    str.insertString(0, "ab");
+    str.removeRange(6, 8);
+    assertSameDocument();
+
+    ref.setIndex(1);
+    deletable.dispose();
+    assertSameDocument();
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testRestoreFromSnapshot() {
+    CollaborativeList list = mod.createList(null);
+    mod.getRoot().set("list", list);
+    list.push(mod.createMap(Json.createObject().set("x", 1)));
+    list.push(mod.createString("y"));
+
+    HeadlessDocument restored = new HeadlessDocument(headless.toSnapshot());
+    VertxAssert.assertEquals(headless.toSnapshot().toJsonString(),
+        restored.toSnapshot().toJsonString());
+    VertxAssert.assertEquals(headless.toJson().toJsonString(), restored.toJson().toJsonString());
+    VertxAssert.assertEquals(headless.bytesUsed(), restored.bytesUsed(), 0);
+    VertxAssert.assertEquals(headless.bytesUsed(list.id()), restored.bytesUsed(list.id()), 0);
+    VertxAssert.assertTrue(restored.bytesUsed(list.id()) > 0);
+    VertxAssert.assertTrue(restored.bytesUsed(list.id()) < restored.bytesUsed());
+    VertxAssert.assertEquals(-1, restored.bytesUsed("missing"), 0);
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testStringEdits() {
+    CollaborativeString str = mod.createString(null);
+    mod.getRoot().set("str", str);
+    str.append("hello world");
+    str.insertString(5, ",");
+    str.removeRange(0, 1);
+    str.setText("jello, world!");
+    assertSameDocument();
+
+    VertxAssert.testComplete();
+  }
+
+  private void assertSameDocument() {
+    VertxAssert.assertEquals(bridge.toSnapshot().toJsonString(),
+        headless.toSnapshot().toJsonString());
+    VertxAssert.assertEquals(bridge.toJson().toJsonString(), headless.toJson().toJsonString());
+  }
+
+  private CollaborativeOperation operation(OperationComponent<?> component) {
+    return new CollaborativeOperation(null, null, Json.createArray().push(component));
+  }
+}
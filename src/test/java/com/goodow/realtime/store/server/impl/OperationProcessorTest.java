@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.TypeLiteral;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.impl.JreJsonObject;
+import com.goodow.realtime.operation.Transformer;
+import com.goodow.realtime.operation.create.CreateComponent;
+import com.goodow.realtime.operation.impl.AbstractComponent;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.operation.map.json.JsonMapComponent;
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.impl.JsonSerializer;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+/**
+ * Submits ops to an in-memory storage, as a pipelined client sends them.
+ */
+public class OperationProcessorTest extends TestVerticle {
+  private static final String DOC_TYPE = "docs";
+  private static final String DOC_ID = "doc";
+  /* The version a rejected op is expected at. */
+  private static final long REJECTED = -1;
+  private OperationProcessor processor;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    processor = Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Vertx.class).toInstance(vertx);
+        bind(Container.class).toInstance(container);
+        bind(new TypeLiteral<Transformer<CollaborativeOperation>>() {
+        }).to(CollaborativeTransformer.class);
+      }
+    }).getInstance(OperationProcessor.class);
+
+    startTests();
+  }
+
+  @Test
+  public void testChainedOpsAreAccepted() {
+    submitInOrder(new JsonObject[] {
+        createRoot(), set("client", 1, 0, "a"), set("client", 2, 1, "b"),
+        set("client", 3, 2, "c")}, new long[] {0, 1, 2, 3}, 0);
+  }
+
+  @Test
+  public void testChainedOpsAfterAConcurrentOpAreRejected() {
+    // The concurrent op reaches the server first: the pipeline of 3 ops breaks after the first
+    submitInOrder(new JsonObject[] {
+        createRoot(), set("other", 1, 0, "x"), set("client", 1, 0, "a"),
+        set("client", 2, 1, "b"), set("client", 3, 2, "c")},
+        new long[] {0, 1, 2, REJECTED, REJECTED}, 0);
+  }
+
+  @Test
+  public void testChainedOpsAfterATransformedOpAreRejected() {
+    // The second op, only chained to the first one, is transformed against the concurrent op; the
+    // third op is chained to both, and was built on a state the server never had
+    submitInOrder(new JsonObject[] {
+        createRoot(), set("client", 1, 0, "a"), set("other", 2, 0, "x"),
+        set("client", 2, 1, "b"), set("client", 3, 2, "c")},
+        new long[] {0, 1, 2, 3, REJECTED}, 0);
+  }
+
+  @Test
+  public void testChainedOpWaitsForTheOpsBeforeIt() {
+    processor.submit(DOC_TYPE, DOC_ID, createRoot(), new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        final int[] pending = {2};
+        AsyncResultHandler<JsonObject> countDown = new AsyncResultHandler<JsonObject>() {
+          @Override
+          public void handle(AsyncResult<JsonObject> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            if (--pending[0] == 0) {
+              VertxAssert.testComplete();
+            }
+          }
+        };
+        // The second op arrives first
+        processor.submit(DOC_TYPE, DOC_ID, set("client", 2, 1, "b"), countDown);
+        processor.submit(DOC_TYPE, DOC_ID, set("client", 1, 0, "a"), countDown);
+      }
+    });
+  }
+
+  private JsonObject createRoot() {
+    return opData("other", 0, 0, new CreateComponent("root", CreateComponent.MAP));
+  }
+
+  private JsonObject opData(String sessionId, long version, int chained,
+                            AbstractComponent<?> component) {
+    CollaborativeOperation op =
+        new CollaborativeOperation("userId", sessionId, Json.createArray().push(component));
+    JsonObject opData = new JsonObject(((JreJsonObject) op.toJson()).toNative())
+        .putNumber(Key.VERSION, version);
+    if (chained > 0) {
+      opData.putNumber(Key.CHAINED, chained);
+    }
+    return opData;
+  }
+
+  private JsonObject set(String sessionId, long version, int chained, String key) {
+    return opData(sessionId, version, chained, new JsonMapComponent("root", key, null,
+        JsonSerializer.serializeObject(key)));
+  }
+
+  /**
+   * Submits each op once the previous one is done, checking the version it was applied at.
+   */
+  private void submitInOrder(final JsonObject[] ops, final long[] versions, final int i) {
+    if (i == ops.length) {
+      VertxAssert.testComplete();
+      return;
+    }
+    processor.submit(DOC_TYPE, DOC_ID, ops[i], new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        if (versions[i] == REJECTED) {
+          VertxAssert.assertTrue("Op " + i, ar.failed());
+          VertxAssert.assertEquals("Pipeline broken", ar.cause().getMessage());
+        } else {
+          VertxAssert.assertTrue("Op " + i, ar.succeeded());
+          VertxAssert.assertEquals(versions[i], ar.result().getLong(Key.VERSION).longValue());
+          // Clients only read the version and the ops
+          VertxAssert.assertFalse(ar.result().containsField(Key.SNAPSHOT));
+        }
+        submitInOrder(ops, versions, i + 1);
+      }
+    });
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.server.DeltaStorage;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.util.Arrays;
+
+public class SnapshotCompressionTest extends TestVerticle {
+  @Override
+  public void start() {
+    initialize();
+    startTests();
+  }
+
+  @Test
+  public void testCompressedAtThreshold() {
+    // ["xx...x"] is encoded in exactly MIN_BYTES bytes
+    JsonObject snapshotData = snapshotData(text('x', SnapshotCompression.MIN_BYTES - 4));
+    String snapshot = snapshotData.getArray(Key.SNAPSHOT).encode();
+
+    SnapshotCompression.compress(snapshotData);
+    VertxAssert.assertFalse(snapshotData.containsField(Key.SNAPSHOT));
+    byte[] compressed = snapshotData.getBinary(DeltaStorage.COMPRESSED_SNAPSHOT);
+    VertxAssert.assertTrue(compressed.length < SnapshotCompression.MIN_BYTES / 10);
+
+    VertxAssert.assertEquals(snapshot, SnapshotCompression.snapshot(snapshotData).encode());
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertEquals(snapshot, snapshotData.getArray(Key.SNAPSHOT).encode());
+    VertxAssert.assertEquals(7, snapshotData.getLong(Key.VERSION).longValue());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testMultiByteCharactersCountAsBytes() {
+    // Fewer characters than MIN_BYTES, but as many bytes once encoded in UTF-8
+    JsonObject snapshotData = snapshotData(text('\u00e9', SnapshotCompression.MIN_BYTES / 2));
+    String snapshot = snapshotData.getArray(Key.SNAPSHOT).encode();
+
+    SnapshotCompression.compress(snapshotData);
+    VertxAssert.assertTrue(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertEquals(snapshot, SnapshotCompression.snapshot(snapshotData).encode());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testNoSnapshot() {
+    JsonObject snapshotData = new JsonObject().putNumber(Key.VERSION, 0);
+    SnapshotCompression.compress(snapshotData);
+    VertxAssert.assertNull(SnapshotCompression.snapshot(snapshotData));
+    VertxAssert.assertEquals(1, snapshotData.size());
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testPlainBelowThreshold() {
+    JsonObject snapshotData = snapshotData(text('x', SnapshotCompression.MIN_BYTES - 5));
+    JsonArray snapshot = snapshotData.getArray(Key.SNAPSHOT);
+
+    SnapshotCompression.compress(snapshotData);
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertSame(snapshot, snapshotData.getArray(Key.SNAPSHOT));
+    VertxAssert.assertSame(snapshot, SnapshotCompression.snapshot(snapshotData));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSnapshotsStoredBeforeCompressionAreRead() {
+    // As stored before snapshots were compressed: plain, however large, and along with the root
+    JsonObject snapshotData = snapshotData(text('x', 10 * SnapshotCompression.MIN_BYTES))
+        .putObject(DeltaStorage.ROOT, new JsonObject());
+    JsonArray snapshot = snapshotData.getArray(Key.SNAPSHOT);
+
+    VertxAssert.assertSame(snapshot, SnapshotCompression.snapshot(snapshotData));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertTrue(snapshotData.containsField(DeltaStorage.ROOT));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testTruncatedSnapshotFails() {
+    JsonObject snapshotData = SnapshotCompression.compress(
+        snapshotData(text('x', 2 * SnapshotCompression.MIN_BYTES)));
+    byte[] compressed = snapshotData.getBinary(DeltaStorage.COMPRESSED_SNAPSHOT);
+    snapshotData.putBinary(DeltaStorage.COMPRESSED_SNAPSHOT,
+        Arrays.copyOf(compressed, compressed.length / 2));
+    try {
+      SnapshotCompression.snapshot(snapshotData);
+      VertxAssert.fail();
+    } catch (IllegalStateException e) {
+    }
+
+    VertxAssert.testComplete();
+  }
+
+  private static JsonObject snapshotData(String text) {
+    return new JsonObject().putNumber(Key.VERSION, 7)
+        .putArray(Key.SNAPSHOT, new JsonArray().addString(text));
+  }
+
+  private static String text(char c, int length) {
+    char[] chars = new char[length];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
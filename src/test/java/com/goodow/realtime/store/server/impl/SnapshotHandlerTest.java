@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.store.server.impl;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+
+import com.goodow.realtime.channel.server.impl.VertxPlatform;
+import com.goodow.realtime.json.impl.JreJsonArray;
+import com.goodow.realtime.operation.Transformer;
+import com.goodow.realtime.operation.impl.CollaborativeOperation;
+import com.goodow.realtime.operation.impl.CollaborativeTransformer;
+import com.goodow.realtime.store.CollaborativeMap;
+import com.goodow.realtime.store.channel.Constants.Key;
+import com.goodow.realtime.store.impl.DocumentBridge;
+import com.goodow.realtime.store.impl.MemoryStore;
+import com.goodow.realtime.store.server.DeltaStorage;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+/**
+ * Fetches the ops applied since a known version, from an in-memory oplog which may have been
+ * trimmed, and selects the representations of a snapshot a get asks for.
+ */
+public class SnapshotHandlerTest extends TestVerticle {
+  /**
+   * An oplog which no longer has the ops before {@link #firstVersion}, as a storage expiring old
+   * ops would.
+   */
+  @Singleton
+  static class TrimmedDeltaStorage extends MemoryDeltaStorage {
+    long firstVersion;
+
+    @Inject
+    TrimmedDeltaStorage(Vertx vertx, Container container) {
+      super(vertx, container);
+    }
+
+    @Override
+    public void getOps(String docType, String docId, Long from, Long to,
+                       AsyncResultHandler<JsonObject> callback) {
+      super.getOps(docType, docId, Math.max(from, firstVersion), to, callback);
+    }
+  }
+
+  private static final String DOC_TYPE = "docs";
+  private static final String DOC_ID = "doc";
+  private SnapshotHandler handler;
+  private TrimmedDeltaStorage storage;
+
+  @Override
+  public void start() {
+    initialize();
+    VertxPlatform.register(vertx);
+
+    Injector injector = Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Vertx.class).toInstance(vertx);
+        bind(Container.class).toInstance(container);
+        bind(new TypeLiteral<Transformer<CollaborativeOperation>>() {
+        }).to(CollaborativeTransformer.class);
+        bind(DeltaStorage.class).to(TrimmedDeltaStorage.class);
+      }
+    });
+    handler = injector.getInstance(SnapshotHandler.class);
+    storage = (TrimmedDeltaStorage) injector.getInstance(DeltaStorage.class);
+
+    startTests();
+  }
+
+  @Test
+  public void testDeltaOfMaxDeltaOps() {
+    history(SnapshotHandler.MAX_DELTA_OPS + 1);
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 1, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertDelta(SnapshotHandler.MAX_DELTA_OPS + 1, 1, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeltaSinceKnownVersion() {
+    history(5);
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 2, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertDelta(5, 2, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testCompressedSnapshotIsInflated() {
+    // Well above the threshold, however the encodings differ
+    JsonObject snapshotData = snapshotData(2 * SnapshotCompression.MIN_BYTES);
+    String snapshot = snapshotData.getArray(Key.SNAPSHOT).encode();
+    SnapshotCompression.compress(snapshotData);
+    VertxAssert.assertFalse(snapshotData.containsField(Key.SNAPSHOT));
+
+    SnapshotHandler.selectFields(DOC_TYPE, DOC_ID, snapshotData, null);
+    VertxAssert.assertEquals(snapshot, snapshotData.getArray(Key.SNAPSHOT).encode());
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertEquals("hello", snapshotData.getObject(DeltaStorage.ROOT).getString("title"));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSelectOneRepresentationShrinksTheReply() {
+    int both = select(null).encode().length();
+    int root = select(DeltaStorage.ROOT).encode().length();
+    int snapshot = select(Key.SNAPSHOT).encode().length();
+    // The snapshot holds the same values as the root, along with their ids and types
+    VertxAssert.assertTrue(root + " of " + both, root < both / 2);
+    VertxAssert.assertTrue(snapshot + " of " + both, snapshot < both);
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSelectRoot() {
+    JsonObject snapshotData = snapshotData(0);
+    SnapshotCompression.compress(snapshotData);
+    SnapshotHandler.selectFields(DOC_TYPE, DOC_ID, snapshotData, DeltaStorage.ROOT);
+    VertxAssert.assertEquals("hello", snapshotData.getObject(DeltaStorage.ROOT).getString("title"));
+    VertxAssert.assertFalse(snapshotData.containsField(Key.SNAPSHOT));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.COMPRESSED_SNAPSHOT));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.REFERENCE_SESSIONS));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSelectRootAndSnapshot() {
+    JsonObject snapshotData = select(null);
+    VertxAssert.assertEquals(1, snapshotData.getLong(Key.VERSION).longValue());
+    VertxAssert.assertEquals("hello", snapshotData.getObject(DeltaStorage.ROOT).getString("title"));
+    VertxAssert.assertNotNull(snapshotData.getArray(Key.SNAPSHOT));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.REFERENCE_SESSIONS));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSelectSnapshot() {
+    JsonObject snapshotData = select(Key.SNAPSHOT);
+    VertxAssert.assertNotNull(snapshotData.getArray(Key.SNAPSHOT));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.ROOT));
+    VertxAssert.assertFalse(snapshotData.containsField(DeltaStorage.REFERENCE_SESSIONS));
+
+    VertxAssert.testComplete();
+  }
+
+  @Test
+  public void testSnapshotIfAllOpsSinceAreTrimmed() {
+    history(5);
+    storage.firstVersion = 5;
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 2, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertSnapshot(5, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testSnapshotIfOplogIsTooShort() {
+    history(5);
+    storage.firstVersion = 3;
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 2, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertSnapshot(5, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testSnapshotIfTooManyOps() {
+    history(SnapshotHandler.MAX_DELTA_OPS + 2);
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 1, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertSnapshot(SnapshotHandler.MAX_DELTA_OPS + 2, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testUpToDate() {
+    history(5);
+    handler.getOpsSince(DOC_TYPE, DOC_ID, 5, new AsyncResultHandler<JsonObject>() {
+      @Override
+      public void handle(AsyncResult<JsonObject> ar) {
+        assertDelta(5, 5, ar);
+        VertxAssert.testComplete();
+      }
+    });
+  }
+
+  private void assertDelta(long version, long knownVersion, AsyncResult<JsonObject> ar) {
+    VertxAssert.assertTrue(ar.succeeded());
+    VertxAssert.assertEquals(version, ar.result().getLong(Key.VERSION).longValue());
+    JsonArray ops = ar.result().getArray(Key.OPS);
+    VertxAssert.assertEquals(version - knownVersion, ops.size());
+    for (int i = 0; i < ops.size(); i++) {
+      VertxAssert.assertEquals(knownVersion + i,
+          ops.<JsonObject> get(i).getLong(Key.VERSION).longValue());
+    }
+    VertxAssert.assertFalse(ar.result().containsField(Key.SNAPSHOT));
+  }
+
+  private void assertSnapshot(long version, AsyncResult<JsonObject> ar) {
+    VertxAssert.assertTrue(ar.succeeded());
+    VertxAssert.assertEquals(version, ar.result().getLong(Key.VERSION).longValue());
+    VertxAssert.assertFalse(ar.result().containsField(Key.OPS));
+    VertxAssert.assertNotNull(ar.result().getArray(Key.SNAPSHOT));
+  }
+
+  private JsonObject select(String fields) {
+    JsonObject snapshotData = snapshotData(0);
+    SnapshotHandler.selectFields(DOC_TYPE, DOC_ID, snapshotData, fields);
+    return snapshotData;
+  }
+
+  /**
+   * Builds the snapshotData of a document at version 1, as the storage keeps it: without the root.
+   *
+   * @param minBytes the minimum length of the encoded snapshot.
+   */
+  private JsonObject snapshotData(int minBytes) {
+    DocumentBridge bridge = new DocumentBridge(new MemoryStore(), DOC_ID, null, null, null);
+    bridge.createRoot();
+    CollaborativeMap root = bridge.getDocument().getModel().getRoot();
+    root.set("title", "hello");
+    for (int i = 0; i < 20 || bridge.toSnapshot().toJsonString().length() < minBytes; i++) {
+      root.set("key" + i, "value" + i);
+    }
+    return new JsonObject().putNumber(Key.VERSION, 1)
+        .putArray(Key.SNAPSHOT, new JsonArray(((JreJsonArray) bridge.toSnapshot()).toNative()))
+        .putObject(DeltaStorage.REFERENCE_SESSIONS, new JsonObject());
+  }
+
+  /**
+   * Fills the oplog with some ops, and stores the snapshot at the version after them. Only the
+   * versions matter here: neither the ops nor the snapshot hold any component.
+   */
+  private void history(int ops) {
+    AsyncResultHandler<Void> ignore = new AsyncResultHandler<Void>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        VertxAssert.assertTrue(ar.succeeded());
+      }
+    };
+    for (int v = 0; v < ops; v++) {
+      storage.writeOp(DOC_TYPE, DOC_ID, new JsonObject().putNumber(Key.VERSION, v), ignore);
+    }
+    storage.writeSnapshot(DOC_TYPE, DOC_ID, new JsonObject().putNumber(Key.VERSION, ops)
+        .putArray(Key.SNAPSHOT, new JsonArray()), ignore);
+  }
+}